@@ -0,0 +1,80 @@
+package pkcs11.jsun.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkcs11.jsun.ManageObjects;
+import pkcs11.jsun.ptk.BIP32KeyDerivation;
+import pkcs11.jsun.ptk.CK_BIP32_CHILD_DERIVE_PARAMS;
+import pkcs11.jsun.ptk.CK_BIP32_MASTER_DERIVE_PARAMS;
+
+/**
+ * BIP32 master and child derivation with {@link BIP32KeyDerivation}.
+ * <p>
+ * The BIP32 mechanisms are vendor mechanisms of ProtectToolkit: this
+ * benchmark fails on tokens that do not provide them, such as SoftHSM. The
+ * seed and the derived keys are session objects, the derived ones being
+ * destroyed within the measured operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "--add-exports=jdk.crypto.cryptoki/sun.security.pkcs11.wrapper=ALL-UNNAMED",
+    "--add-exports=java.base/sun.security.util=ALL-UNNAMED"
+})
+@State(Scope.Thread)
+public class BIP32Benchmark {
+
+    private static final long[] CHILD_PATH = {0L, 1L, 4L};
+
+    private long hSeed;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        hSeed = BIP32KeyDerivation.generateSecretKey(token.p11, session.hSession,
+                "benchmark BIP32 seed " + Thread.currentThread().getId(), false);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        ManageObjects.delete(token.p11, session.hSession, hSeed);
+    }
+
+    @Benchmark
+    public long deriveMaster(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        CK_BIP32_MASTER_DERIVE_PARAMS master = BIP32KeyDerivation.generateMasterKeyPair(token.p11, session.hSession, hSeed, false);
+        destroy(token, session, master.hPublicKey, master.hPrivateKey);
+        return master.hPrivateKey;
+    }
+
+    @Benchmark
+    public long deriveChild(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        CK_BIP32_MASTER_DERIVE_PARAMS master = BIP32KeyDerivation.generateMasterKeyPair(token.p11, session.hSession, hSeed, false);
+        CK_BIP32_CHILD_DERIVE_PARAMS child = BIP32KeyDerivation.generateChildKeyPair(token.p11, session.hSession,
+                master.hPrivateKey, CHILD_PATH, false);
+        destroy(token, session, child.hPublicKey, child.hPrivateKey, master.hPublicKey, master.hPrivateKey);
+        return child.hPrivateKey;
+    }
+
+    private static void destroy(BenchmarkToken token, BenchmarkSession session, long... handles) throws Exception {
+        for (long handle : handles) {
+            if (handle != 0) {
+                ManageObjects.delete(token.p11, session.hSession, handle);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package pkcs11.jsun.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import pkcs11.jsun.SessionPool;
+
+/**
+ * A session leased from the token pool for the whole trial, one per
+ * benchmark thread.
+ */
+@State(Scope.Thread)
+public class BenchmarkSession {
+
+    public long hSession;
+
+    private SessionPool.Lease lease;
+
+    @Setup(Level.Trial)
+    public void lease(BenchmarkToken token) throws Exception {
+        lease = token.pool.lease();
+        hSession = lease.handle();
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        lease.close();
+    }
+}
@@ -0,0 +1,97 @@
+package pkcs11.jsun.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import pkcs11.jsun.ManageObjects;
+import pkcs11.jsun.Pkcs11Module;
+import pkcs11.jsun.SessionPool;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * The token shared by all the benchmark threads: the Cryptoki library, a pool
+ * of logged-in sessions and the keys used by the benchmarks.
+ * <p>
+ * The library, slot and PIN are the ones of the {@link Pkcs11Module} of the
+ * fork, configured with its system properties or environment variables. The
+ * benchmarks open their own session pool on that slot:
+ * <li>pkcs11.sessions (PKCS11_SESSIONS) size of the session pool, at least the thread count, default 16
+ * <p>
+ * All the keys are session objects: nothing is left on the token once the
+ * benchmark is over.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkToken {
+
+    /**
+     * DER encoding of the OID of the NIST P-256 curve.
+     */
+    static final byte[] P256_PARAMS = {
+        0x06, 0x08, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x03, 0x01, 0x07
+    };
+
+    static final String AES_LABEL = "benchmark AES key";
+
+    public PKCS11 p11;
+    public SessionPool pool;
+    public long hAesKey;
+    public long hEcPublicKey;
+    public long hEcPrivateKey;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        int sessions = Integer.parseInt(setting("pkcs11.sessions", "PKCS11_SESSIONS", "16"));
+
+        /* the module is shared by all the trials of the fork, it is finalised when the fork exits */
+        Pkcs11Module module = Pkcs11Module.getInstance();
+        p11 = module.getP11();
+        pool = module.newSessionPool(sessions);
+
+        try (SessionPool.Lease lease = pool.lease()) {
+            CK_ATTRIBUTE[] aesTemplate = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, AES_LABEL.getBytes()),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE_LEN, 32L),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_ENCRYPT, true),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_DECRYPT, true)
+            };
+            hAesKey = ManageObjects.generateKey(p11, lease.handle(), aesTemplate,
+                    PKCS11Constants.CKM_AES_KEY_GEN, AES_LABEL, false);
+
+            CK_ATTRIBUTE[] publicTemplate = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EC_PARAMS, P256_PARAMS),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_VERIFY, true)
+            };
+            CK_ATTRIBUTE[] privateTemplate = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_PRIVATE, true),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, true),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_SIGN, true),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, true)
+            };
+            long[] keys = ManageObjects.generateKeyPair(p11, lease.handle(), new CK_MECHANISM(PKCS11Constants.CKM_EC_KEY_PAIR_GEN),
+                    publicTemplate, privateTemplate);
+            hEcPublicKey = keys[0];
+            hEcPrivateKey = keys[1];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        /* closing the sessions destroys the session objects */
+        pool.close();
+    }
+
+    static String setting(String property, String env, String defaultValue) {
+        return Pkcs11Module.setting(property, env, defaultValue);
+    }
+}
@@ -0,0 +1,76 @@
+package pkcs11.jsun.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkcs11.jsun.Cryptography;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Payload-dependent operations of {@link Cryptography}: AES encryption and
+ * decryption, and SHA-256 hashing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "--add-exports=jdk.crypto.cryptoki/sun.security.pkcs11.wrapper=ALL-UNNAMED",
+    "--add-exports=java.base/sun.security.util=ALL-UNNAMED"
+})
+@State(Scope.Thread)
+public class CryptographyBenchmark {
+
+    /* payloads are multiples of the AES block size, ECB does not pad */
+    @Param({"16", "1024", "16384", "1048576"})
+    public int payloadSize;
+
+    private final CK_MECHANISM aesEcb = new CK_MECHANISM(PKCS11Constants.CKM_AES_ECB);
+    private final CK_MECHANISM sha256 = new CK_MECHANISM(PKCS11Constants.CKM_SHA256);
+
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private byte[] output;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        /* fixed seed, every run works on the same data */
+        plaintext = new byte[payloadSize];
+        new Random(42).nextBytes(plaintext);
+        ciphertext = new byte[payloadSize];
+        output = new byte[payloadSize];
+
+        Cryptography.encrypt(token.p11, session.hSession, aesEcb, token.hAesKey, plaintext, ciphertext);
+    }
+
+    @Benchmark
+    public byte[] encrypt(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        Cryptography.encrypt(token.p11, session.hSession, aesEcb, token.hAesKey, plaintext, output);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] decrypt(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        Cryptography.decrypt(token.p11, session.hSession, aesEcb, token.hAesKey, ciphertext, output);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] shaHashData(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        return Cryptography.shaHashData(token.p11, session.hSession, sha256, plaintext, plaintext.length);
+    }
+}
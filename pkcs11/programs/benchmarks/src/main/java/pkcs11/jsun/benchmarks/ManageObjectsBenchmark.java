@@ -0,0 +1,90 @@
+package pkcs11.jsun.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkcs11.jsun.ManageObjects;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_ECDH1_DERIVE_PARAMS;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * Object management with {@link ManageObjects}: searching a key, generating
+ * an AES key and deriving a secret by ECDH. Generated and derived keys are
+ * destroyed within the measured operation so that the token does not fill up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "--add-exports=jdk.crypto.cryptoki/sun.security.pkcs11.wrapper=ALL-UNNAMED",
+    "--add-exports=java.base/sun.security.util=ALL-UNNAMED"
+})
+@State(Scope.Thread)
+public class ManageObjectsBenchmark {
+
+    private final CK_ATTRIBUTE[] findTemplate = {
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, BenchmarkToken.AES_LABEL.getBytes())
+    };
+
+    private final CK_ATTRIBUTE[] keyTemplate = {
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE_LEN, 32L),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false)
+    };
+
+    private final CK_ATTRIBUTE[] derivedTemplate = {
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_GENERIC_SECRET),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE_LEN, 32L),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false)
+    };
+
+    private CK_MECHANISM ecdh;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        /* derive with our own public key as the peer's, only the cost matters */
+        CK_ATTRIBUTE[] point = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_EC_POINT)
+        };
+        token.p11.C_GetAttributeValue(session.hSession, token.hEcPublicKey, point);
+        ecdh = new CK_MECHANISM(PKCS11Constants.CKM_ECDH1_DERIVE,
+                new CK_ECDH1_DERIVE_PARAMS(PKCS11Constants.CKD_NULL, null, point[0].getByteArray()));
+    }
+
+    @Benchmark
+    public long find(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        return ManageObjects.find(token.p11, session.hSession, findTemplate);
+    }
+
+    @Benchmark
+    public long generateKey(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        long hKey = ManageObjects.generateKey(token.p11, session.hSession, keyTemplate,
+                PKCS11Constants.CKM_AES_KEY_GEN, "", false);
+        ManageObjects.delete(token.p11, session.hSession, hKey);
+        return hKey;
+    }
+
+    @Benchmark
+    public long deriveKey(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        long hKey = ManageObjects.deriveKey(token.p11, session.hSession, ecdh, token.hEcPrivateKey, derivedTemplate);
+        ManageObjects.delete(token.p11, session.hSession, hKey);
+        return hKey;
+    }
+}
@@ -0,0 +1,58 @@
+package pkcs11.jsun.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pkcs11.jsun.Cryptography;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * ECDSA P-256 signature and verification of a SHA-256 hash with
+ * {@link Cryptography#Sign} and {@link Cryptography#Verify}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {
+    "--add-exports=jdk.crypto.cryptoki/sun.security.pkcs11.wrapper=ALL-UNNAMED",
+    "--add-exports=java.base/sun.security.util=ALL-UNNAMED"
+})
+@State(Scope.Thread)
+public class SignatureBenchmark {
+
+    private final CK_MECHANISM ecdsa = new CK_MECHANISM(PKCS11Constants.CKM_ECDSA);
+
+    private byte[] hash;
+    private byte[] signature;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        hash = new byte[32];
+        new Random(42).nextBytes(hash);
+        signature = Cryptography.Sign(token.p11, session.hSession, ecdsa, token.hEcPrivateKey, hash, hash.length);
+    }
+
+    @Benchmark
+    public byte[] sign(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        return Cryptography.Sign(token.p11, session.hSession, ecdsa, token.hEcPrivateKey, hash, hash.length);
+    }
+
+    @Benchmark
+    public void verify(BenchmarkToken token, BenchmarkSession session) throws Exception {
+        Cryptography.Verify(token.p11, session.hSession, ecdsa, token.hEcPublicKey, hash, hash.length, signature, signature.length);
+    }
+}
@@ -0,0 +1,254 @@
+package pkcs11.jsun;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Non-blocking facade over {@link Cryptography} and {@link ManageObjects}.
+ * <p>
+ * Every operation is queued and later run on one of the token's worker
+ * threads, with a session leased from the token's pool; its result is
+ * delivered through a {@link CompletableFuture}. There are as many workers as
+ * sessions in the pool, so no more operations than the token can take are in
+ * flight, however many callers submit work.
+ * <p>
+ * The native calls are made on the platform worker threads: callers running on
+ * virtual threads can wait on the futures without pinning their carrier
+ * thread.
+ */
+public class AsyncCryptography implements AutoCloseable {
+
+    private final SessionPool pool;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a facade whose queue of pending operations is unbounded.
+     *
+     * @param pool The session pool of the token.
+     */
+    public AsyncCryptography(SessionPool pool) {
+        this(pool, 0);
+    }
+
+    /**
+     * @param pool The session pool of the token.
+     * @param queueCapacity Maximum number of operations waiting for a worker,
+     * 0 for no limit. Operations submitted past the limit fail with a
+     * {@link RejectedExecutionException}.
+     */
+    public AsyncCryptography(SessionPool pool, int queueCapacity) {
+        this.pool = pool;
+
+        BlockingQueue<Runnable> queue = queueCapacity > 0
+                ? new ArrayBlockingQueue<>(queueCapacity)
+                : new LinkedBlockingQueue<>();
+        AtomicInteger count = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(pool.getSize(), pool.getSize(), 0L, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread thread = new Thread(r, "pkcs11-slot-" + pool.getSlotId() + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs any operation on a session of the token.
+     *
+     * @param <T> Type of the result of the operation.
+     * @param operation The operation.
+     * @return The future result of the operation.
+     */
+    public <T> CompletableFuture<T> submit(SlotScheduler.Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (future.isCancelled()) {
+                    return;
+                }
+                try (SessionPool.Lease lease = pool.lease()) {
+                    try {
+                        future.complete(operation.run(pool.getP11(), pool.getSlotId(), lease.handle()));
+                    } catch (PKCS11Exception ex) {
+                        lease.check(ex);
+                        throw ex;
+                    }
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    /**
+     * See {@link Cryptography#encrypt(sun.security.pkcs11.wrapper.PKCS11, long, CK_MECHANISM, long, byte[], byte[])}.
+     *
+     * @param maxCiphertextLen Size of the output buffer; the result is trimmed to the actual length.
+     * @return The future encrypted data.
+     */
+    public CompletableFuture<byte[]> encrypt(CK_MECHANISM mechanism, long hKey, byte[] plaintext, int maxCiphertextLen) {
+        return submit((p11, slotId, hSession) -> {
+            byte[] ciphertext = new byte[maxCiphertextLen];
+            int len = Cryptography.encrypt(p11, hSession, mechanism, hKey, plaintext, ciphertext);
+            return len == ciphertext.length ? ciphertext : Arrays.copyOf(ciphertext, len);
+        });
+    }
+
+    /**
+     * See {@link Cryptography#decrypt(sun.security.pkcs11.wrapper.PKCS11, long, CK_MECHANISM, long, byte[], byte[])}.
+     *
+     * @param maxPlaintextLen Size of the output buffer; the result is trimmed to the actual length.
+     * @return The future decrypted data.
+     */
+    public CompletableFuture<byte[]> decrypt(CK_MECHANISM mechanism, long hKey, byte[] ciphertext, int maxPlaintextLen) {
+        return submit((p11, slotId, hSession) -> {
+            byte[] plaintext = new byte[maxPlaintextLen];
+            int len = Cryptography.decrypt(p11, hSession, mechanism, hKey, ciphertext, plaintext);
+            return len == plaintext.length ? plaintext : Arrays.copyOf(plaintext, len);
+        });
+    }
+
+    /**
+     * See {@link Cryptography#shaHashData}.
+     *
+     * @return The future hash.
+     */
+    public CompletableFuture<byte[]> digest(CK_MECHANISM hashMech, byte[] data) {
+        return submit((p11, slotId, hSession) -> Cryptography.shaHashData(p11, hSession, hashMech, data, data.length));
+    }
+
+    /**
+     * See {@link Cryptography#Sign}.
+     *
+     * @return The future signature.
+     */
+    public CompletableFuture<byte[]> sign(CK_MECHANISM signMech, long hPrivateKey, byte[] hash) {
+        return submit((p11, slotId, hSession) -> Cryptography.Sign(p11, hSession, signMech, hPrivateKey, hash, hash.length));
+    }
+
+    /**
+     * See {@link Cryptography#HashSign}.
+     *
+     * @return The future signature.
+     */
+    public CompletableFuture<byte[]> hashSign(CK_MECHANISM signMech, long hPrivateKey, byte[] data) {
+        return submit((p11, slotId, hSession) -> Cryptography.HashSign(p11, hSession, signMech, hPrivateKey, data, data.length));
+    }
+
+    /**
+     * See {@link Cryptography#Verify}.
+     *
+     * @return The future outcome: true if the signature is valid, false if the token rejected it.
+     */
+    public CompletableFuture<Boolean> verify(CK_MECHANISM verifyMech, long hPublicKey, byte[] hash, byte[] signature) {
+        return submit((p11, slotId, hSession) -> {
+            try {
+                Cryptography.Verify(p11, hSession, verifyMech, hPublicKey, hash, hash.length, signature, signature.length);
+                return true;
+            } catch (PKCS11Exception ex) {
+                return rejected(ex);
+            }
+        });
+    }
+
+    /**
+     * See {@link Cryptography#HashVerify}.
+     *
+     * @return The future outcome: true if the signature is valid, false if the token rejected it.
+     */
+    public CompletableFuture<Boolean> hashVerify(CK_MECHANISM verifyMech, long hPublicKey, byte[] data, byte[] signature) {
+        return submit((p11, slotId, hSession) -> {
+            try {
+                Cryptography.HashVerify(p11, hSession, verifyMech, hPublicKey, data, data.length, signature, signature.length);
+                return true;
+            } catch (PKCS11Exception ex) {
+                return rejected(ex);
+            }
+        });
+    }
+
+    /**
+     * See {@link ManageObjects#find(sun.security.pkcs11.wrapper.PKCS11, long, CK_ATTRIBUTE[])}.
+     *
+     * @return The future handle of the object found.
+     */
+    public CompletableFuture<Long> find(CK_ATTRIBUTE[] template) {
+        return submit((p11, slotId, hSession) -> ManageObjects.find(p11, hSession, template));
+    }
+
+    /**
+     * See {@link ManageObjects#generateKey}.
+     *
+     * @return The future handle of the generated key.
+     */
+    public CompletableFuture<Long> generateKey(CK_ATTRIBUTE[] template, long mechanismType) {
+        return submit((p11, slotId, hSession) -> ManageObjects.generateKey(p11, hSession, template, mechanismType, null, false));
+    }
+
+    /**
+     * See {@link ManageObjects#deriveKey}.
+     *
+     * @return The future handle of the derived key.
+     */
+    public CompletableFuture<Long> deriveKey(CK_MECHANISM mechanism, long hBaseKey, CK_ATTRIBUTE[] newObjTpl) {
+        return submit((p11, slotId, hSession) -> ManageObjects.deriveKey(p11, hSession, mechanism, hBaseKey, newObjTpl));
+    }
+
+    /**
+     * See {@link ManageObjects#wrapKey(sun.security.pkcs11.wrapper.PKCS11, long, CK_MECHANISM, CK_ATTRIBUTE[], CK_ATTRIBUTE[])}.
+     *
+     * @return The future wrapped key.
+     */
+    public CompletableFuture<byte[]> wrapKey(CK_MECHANISM mechanism, CK_ATTRIBUTE[] wrappingKey, CK_ATTRIBUTE[] keyToWrap) {
+        return submit((p11, slotId, hSession) -> ManageObjects.wrapKey(p11, hSession, mechanism, wrappingKey, keyToWrap));
+    }
+
+    /**
+     * See {@link ManageObjects#delete(sun.security.pkcs11.wrapper.PKCS11, long, long)}.
+     *
+     * @return A future completed once the object is destroyed.
+     */
+    public CompletableFuture<Void> delete(long hObject) {
+        return submit((p11, slotId, hSession) -> {
+            ManageObjects.delete(p11, hSession, hObject);
+            return null;
+        });
+    }
+
+    /**
+     * @return The number of operations waiting for a worker.
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting operations; the queued ones still run. The session pool
+     * is left open.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static boolean rejected(PKCS11Exception ex) throws PKCS11Exception {
+        if (ex.getErrorCode() == PKCS11Exception.CKR_SIGNATURE_INVALID
+                || ex.getErrorCode() == PKCS11Exception.CKR_SIGNATURE_LEN_RANGE) {
+            return false;
+        }
+        throw ex;
+    }
+}
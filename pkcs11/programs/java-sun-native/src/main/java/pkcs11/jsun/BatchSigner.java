@@ -0,0 +1,219 @@
+package pkcs11.jsun;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Signs batches of messages over several pooled sessions, possibly spread
+ * over several slots.
+ * <p>
+ * The messages are cut into chunks, each chunk being signed on one leased
+ * session. Signatures are returned in the order of the messages, and a
+ * message that fails to be signed is reported in its {@link Result} without
+ * aborting the rest of the batch.
+ */
+public class BatchSigner implements AutoCloseable {
+
+    /**
+     * Default number of messages signed on a session per lease.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 32;
+
+    private final List<SessionPool> pools;
+    private final int chunkSize;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a batch signer using as many worker threads as there are
+     * sessions in the pools.
+     *
+     * @param pools The session pools to sign on, typically one per slot.
+     */
+    public BatchSigner(List<SessionPool> pools) {
+        this(pools, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a batch signer using as many worker threads as there are
+     * sessions in the pools.
+     *
+     * @param pools The session pools to sign on, typically one per slot.
+     * @param chunkSize Number of messages signed on a session per lease.
+     */
+    public BatchSigner(List<SessionPool> pools, int chunkSize) {
+        if (pools.isEmpty()) {
+            throw new IllegalArgumentException("At least one session pool is required");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.pools = new ArrayList<>(pools);
+        this.chunkSize = chunkSize;
+
+        int threads = 0;
+        for (SessionPool pool : pools) {
+            threads += pool.getSize();
+        }
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Signs a batch of messages with a key whose handle is valid on every
+     * pool, e.g. when all the pools are opened on the same token.
+     *
+     * @param signMech The signature mechanism (e.g., ECDSA SHA256).
+     * @param hPrivateKey Handle of the private key to sign with.
+     * @param messages The messages to sign.
+     * @return One result per message, in the order of the messages.
+     * @throws InterruptedException If the thread is interrupted while waiting for the batch.
+     */
+    public List<Result> sign(CK_MECHANISM signMech, long hPrivateKey, List<byte[]> messages) throws InterruptedException {
+        long[] hKeys = new long[pools.size()];
+        Arrays.fill(hKeys, hPrivateKey);
+        return sign(signMech, hKeys, messages);
+    }
+
+    /**
+     * Signs a batch of messages with a key located on each slot by a template.
+     * The key is looked up once per pool, before the signing starts.
+     *
+     * @param signMech The signature mechanism (e.g., ECDSA SHA256).
+     * @param keyTemplate Cryptoki template identifying the private key on every slot.
+     * @param messages The messages to sign.
+     * @return One result per message, in the order of the messages.
+     * @throws Exception If the key cannot be found on one of the slots.
+     */
+    public List<Result> sign(CK_MECHANISM signMech, CK_ATTRIBUTE[] keyTemplate, List<byte[]> messages) throws Exception {
+        long[] hKeys = new long[pools.size()];
+        for (int i = 0; i < hKeys.length; ++i) {
+            SessionPool pool = pools.get(i);
+            try (SessionPool.Lease lease = pool.lease()) {
+                hKeys[i] = ManageObjects.find(pool.getP11(), lease.handle(), keyTemplate);
+            }
+        }
+        return sign(signMech, hKeys, messages);
+    }
+
+    private List<Result> sign(CK_MECHANISM signMech, long[] hKeys, List<byte[]> messages) throws InterruptedException {
+        Result[] results = new Result[messages.size()];
+        List<Future<?>> chunks = new ArrayList<>();
+
+        for (int from = 0, chunk = 0; from < results.length; from += chunkSize, ++chunk) {
+            int poolIndex = chunk % pools.size();
+            int start = from;
+            int end = Math.min(from + chunkSize, results.length);
+
+            chunks.add(executor.submit(() -> signChunk(pools.get(poolIndex), signMech, hKeys[poolIndex],
+                    messages, start, end, results)));
+        }
+
+        for (Future<?> chunk : chunks) {
+            try {
+                chunk.get();
+            } catch (ExecutionException ex) {
+                /* per-message failures are recorded by signChunk */
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private static void signChunk(SessionPool pool, CK_MECHANISM signMech, long hPrivateKey,
+            List<byte[]> messages, int start, int end, Result[] results) {
+
+        try {
+            /* a lost session is given back and the rest of the chunk goes on a fresh one */
+            for (int next = start; next < end;) {
+                try (SessionPool.Lease lease = pool.lease()) {
+                    next = signOnSession(pool, lease, signMech, hPrivateKey, messages, next, end, results);
+                }
+            }
+        } catch (Exception ex) {
+            /* no session could be leased: fail whatever is left of the chunk */
+            for (int i = start; i < end; ++i) {
+                if (results[i] == null) {
+                    results[i] = new Result(i, null, ex);
+                }
+            }
+        }
+    }
+
+    /* sign until the end of the chunk or until the session is lost; returns the next index to sign */
+    private static int signOnSession(SessionPool pool, SessionPool.Lease lease, CK_MECHANISM signMech,
+            long hPrivateKey, List<byte[]> messages, int start, int end, Result[] results) {
+        for (int i = start; i < end; ++i) {
+            byte[] message = messages.get(i);
+            try {
+                byte[] signature = Cryptography.Sign(pool.getP11(), lease.handle(), signMech,
+                        hPrivateKey, message, message.length);
+                results[i] = new Result(i, signature, null);
+            } catch (PKCS11Exception ex) {
+                results[i] = new Result(i, null, ex);
+                if (lease.check(ex)) {
+                    return i + 1;
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Stops the worker threads. The session pools are left open.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Outcome of signing one message of a batch.
+     */
+    public static class Result {
+
+        private final int index;
+        private final byte[] signature;
+        private final Exception error;
+
+        Result(int index, byte[] signature, Exception error) {
+            this.index = index;
+            this.signature = signature;
+            this.error = error;
+        }
+
+        /**
+         * @return Position of the message in the batch.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return true if the message was signed.
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * @return The signature, or null if the message could not be signed.
+         */
+        public byte[] getSignature() {
+            return signature;
+        }
+
+        /**
+         * @return The reason the message could not be signed, or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+}
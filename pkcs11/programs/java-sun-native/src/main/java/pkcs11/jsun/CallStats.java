@@ -0,0 +1,264 @@
+package pkcs11.jsun;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Latency histogram and error count of one Cryptoki function, on one slot and
+ * with one mechanism.
+ * <p>
+ * Recording a call only touches striped counters, so that threads calling the
+ * token concurrently do not contend on the statistics. The histogram has four
+ * buckets per power of two of nanoseconds.
+ * <p>
+ * Every instance is registered on the platform MBean server as
+ * <code>pkcs11.jsun:type=CryptokiCall,function=...,slot=...,mechanism=...</code>
+ * when it is created.
+ */
+public class CallStats implements CallStatsMXBean {
+
+    /* 2 bits of sub-bucket precision over 64 bits of nanoseconds */
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    /* mechanism value of the calls that do not take one */
+    static final long NO_MECHANISM = -1;
+
+    private static final Map<Key, CallStats> ALL = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled = !"false".equalsIgnoreCase(System.getProperty("pkcs11.metrics"));
+
+    private final String function;
+    private final long slot;
+    private final long mechanism;
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    private CallStats(String function, long slot, long mechanism) {
+        this.function = function;
+        this.slot = slot;
+        this.mechanism = mechanism;
+        for (int i = 0; i < BUCKETS; ++i) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return true if the Cryptoki calls are being measured.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the measurement of the Cryptoki calls on or off. It is on unless
+     * the <code>pkcs11.metrics</code> system property is <code>false</code>.
+     *
+     * @param on true to measure the calls.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Returns the statistics of a function, slot and mechanism, creating and
+     * registering them the first time.
+     *
+     * @param function Name of the Cryptoki function.
+     * @param slot The slot, or -1 if unknown.
+     * @param mechanism The mechanism, or -1 if none.
+     * @return The statistics.
+     */
+    public static CallStats of(String function, long slot, long mechanism) {
+        Key key = new Key(function, slot, mechanism);
+        CallStats stats = ALL.get(key);
+        if (stats == null) {
+            stats = ALL.computeIfAbsent(key, k -> register(new CallStats(function, slot, mechanism)));
+        }
+        return stats;
+    }
+
+    /**
+     * @return The statistics of every function, slot and mechanism called so far.
+     */
+    public static Iterable<CallStats> all() {
+        return ALL.values();
+    }
+
+    /**
+     * Records one call.
+     *
+     * @param elapsedNanos How long the call took.
+     * @param failed true if the call raised an error.
+     */
+    public void record(long elapsedNanos, boolean failed) {
+        buckets[bucket(elapsedNanos)].increment();
+        count.increment();
+        totalNanos.add(elapsedNanos);
+        maxNanos.accumulate(elapsedNanos);
+        if (failed) {
+            errors.increment();
+        }
+    }
+
+    @Override
+    public String getFunction() {
+        return function;
+    }
+
+    @Override
+    public long getSlot() {
+        return slot;
+    }
+
+    @Override
+    public String getMechanism() {
+        return mechanism == NO_MECHANISM ? "none" : "0x" + Long.toHexString(mechanism);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return maxNanos.get() / 1000.0;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public double getP90Micros() {
+        return percentile(0.90);
+    }
+
+    @Override
+    public double getP99Micros() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        errors.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+
+    /**
+     * @param fraction The fraction of calls, e.g. 0.99.
+     * @return The upper bound of the bucket holding that fraction of the calls, in microseconds.
+     */
+    public double percentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxNanos.get()) / 1000.0;
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /* index of the bucket holding a latency */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /* highest latency falling in a bucket */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long base = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        return base + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    private static CallStats register(CallStats stats) {
+        try {
+            ObjectName name = new ObjectName("pkcs11.jsun:type=CryptokiCall"
+                    + ",function=" + stats.function
+                    + ",slot=" + stats.slot
+                    + ",mechanism=" + stats.getMechanism());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+        } catch (JMException ex) {
+            /* still recorded, only not visible over JMX */
+        }
+        return stats;
+    }
+
+    /* identity of a set of statistics */
+    private static final class Key {
+
+        private final String function;
+        private final long slot;
+        private final long mechanism;
+
+        Key(String function, long slot, long mechanism) {
+            this.function = function;
+            this.slot = slot;
+            this.mechanism = mechanism;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return slot == other.slot && mechanism == other.mechanism && function.equals(other.function);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(function, slot, mechanism);
+        }
+    }
+}
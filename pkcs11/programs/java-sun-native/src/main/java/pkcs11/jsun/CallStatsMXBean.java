@@ -0,0 +1,64 @@
+package pkcs11.jsun;
+
+/**
+ * JMX view of the latency of one Cryptoki function, on one slot and with one
+ * mechanism. Latencies are read from a histogram whose buckets are about 25%
+ * wide, percentiles are therefore approximate.
+ */
+public interface CallStatsMXBean {
+
+    /**
+     * @return Name of the Cryptoki function, e.g. C_Sign.
+     */
+    String getFunction();
+
+    /**
+     * @return The slot the calls were made on, or -1 if unknown.
+     */
+    long getSlot();
+
+    /**
+     * @return The mechanism of the calls, in hexadecimal, or "none".
+     */
+    String getMechanism();
+
+    /**
+     * @return The number of calls, failed ones included.
+     */
+    long getCount();
+
+    /**
+     * @return The number of calls that raised an error.
+     */
+    long getErrorCount();
+
+    /**
+     * @return The mean latency, in microseconds.
+     */
+    double getMeanMicros();
+
+    /**
+     * @return The highest latency, in microseconds.
+     */
+    double getMaxMicros();
+
+    /**
+     * @return The median latency, in microseconds.
+     */
+    double getP50Micros();
+
+    /**
+     * @return The 90th percentile of the latency, in microseconds.
+     */
+    double getP90Micros();
+
+    /**
+     * @return The 99th percentile of the latency, in microseconds.
+     */
+    double getP99Micros();
+
+    /**
+     * Clears the counters and the histogram.
+     */
+    void reset();
+}
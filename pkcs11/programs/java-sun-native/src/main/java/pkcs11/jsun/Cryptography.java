@@ -1,11 +1,81 @@
 package pkcs11.jsun;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
 import sun.security.pkcs11.wrapper.CK_MECHANISM;
 import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
 import sun.security.pkcs11.wrapper.PKCS11Exception;
 
 public class Cryptography {
 
+    /**
+     * Size of the chunks fed to the multi-part operations. The heap used by a
+     * streaming operation is bounded by this value, whatever the payload size.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Room left in the output buffer of a multi-part operation for padding and
+     * data held back by the token between two updates.
+     */
+    static final int CHUNK_SLACK = 64;
+
+    /**
+     * Size of the file windows mapped in memory while digesting a file.
+     */
+    public static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Largest digest produced by the supported hash mechanisms (SHA-512).
+     */
+    static final int MAX_DIGEST_LENGTH = 64;
+
+    /* block sizes, largest GCM tag and largest RSA modulus (8192 bits), to size outputs */
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int DES_BLOCK_SIZE = 8;
+    private static final int MAX_GCM_TAG_LENGTH = 16;
+    private static final int MAX_RSA_MODULUS_LENGTH = 1024;
+
+    /* JCA digests and raw mechanisms matching the hash-and-sign mechanisms */
+    private static final Map<Long, LocalHash> LOCAL_HASHES = new HashMap<>();
+
+    static {
+        LOCAL_HASHES.put(PKCS11Constants.CKM_ECDSA_SHA1, new LocalHash("SHA-1", PKCS11Constants.CKM_ECDSA, ""));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_ECDSA_SHA224, new LocalHash("SHA-224", PKCS11Constants.CKM_ECDSA, ""));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_ECDSA_SHA256, new LocalHash("SHA-256", PKCS11Constants.CKM_ECDSA, ""));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_ECDSA_SHA384, new LocalHash("SHA-384", PKCS11Constants.CKM_ECDSA, ""));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_ECDSA_SHA512, new LocalHash("SHA-512", PKCS11Constants.CKM_ECDSA, ""));
+        /* RSA PKCS#1 v1.5 signs the DER DigestInfo of the hash, i.e. a fixed prefix per algorithm */
+        LOCAL_HASHES.put(PKCS11Constants.CKM_SHA1_RSA_PKCS, new LocalHash("SHA-1", PKCS11Constants.CKM_RSA_PKCS,
+                "3021300906052b0e03021a05000414"));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_SHA224_RSA_PKCS, new LocalHash("SHA-224", PKCS11Constants.CKM_RSA_PKCS,
+                "302d300d06096086480165030402040500041c"));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_SHA256_RSA_PKCS, new LocalHash("SHA-256", PKCS11Constants.CKM_RSA_PKCS,
+                "3031300d060960864801650304020105000420"));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_SHA384_RSA_PKCS, new LocalHash("SHA-384", PKCS11Constants.CKM_RSA_PKCS,
+                "3041300d060960864801650304020205000430"));
+        LOCAL_HASHES.put(PKCS11Constants.CKM_SHA512_RSA_PKCS, new LocalHash("SHA-512", PKCS11Constants.CKM_RSA_PKCS,
+                "3051300d060960864801650304020305000440"));
+    }
+
     /**
      * Encrypts data using AES in ECB mode with the specified token.
      *
@@ -15,11 +85,12 @@ public class Cryptography {
      * @param hKey Handle of the encryption key.
      * @param plaintext The data to encrypt.
      * @param ciphertext The resulting encrypted data.
+     * @return The number of bytes written to the ciphertext array.
      * @throws Exception If an error occurs during the encryption process.
      */
-    public static void encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] plaintext, byte[] ciphertext) throws Exception {
-        p11.C_EncryptInit(hSession, mechanism, hKey);
-        p11.C_Encrypt(hSession, 0L, plaintext, 0, plaintext.length, 0L, ciphertext, 0, ciphertext.length);
+    public static int encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] plaintext, byte[] ciphertext) throws Exception {
+        Cryptoki.C_EncryptInit(p11, hSession, mechanism, hKey);
+        return Cryptoki.C_Encrypt(p11, hSession, 0L, plaintext, 0, plaintext.length, 0L, ciphertext, 0, ciphertext.length);
     }
 
     /**
@@ -31,11 +102,292 @@ public class Cryptography {
      * @param hKey Handle of the decryption key.
      * @param ciphertext The data to decrypt.
      * @param plaintext The resulting decrypted data.
+     * @return The number of bytes written to the plaintext array.
      * @throws Exception If an error occurs during the decryption process.
      */
-    public static void decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] ciphertext, byte[] plaintext) throws Exception {
-        p11.C_DecryptInit(hSession, mechanism, hKey);
-        p11.C_Decrypt(hSession, 0L, ciphertext, 0, ciphertext.length, 0L, plaintext, 0, plaintext.length);
+    public static int decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, byte[] ciphertext, byte[] plaintext) throws Exception {
+        Cryptoki.C_DecryptInit(p11, hSession, mechanism, hKey);
+        return Cryptoki.C_Decrypt(p11, hSession, 0L, ciphertext, 0, ciphertext.length, 0L, plaintext, 0, plaintext.length);
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer into another one.
+     * <p>
+     * Heap buffers are handed to the token by array, so their data is not
+     * copied on the way; direct buffers are copied through a heap array, as
+     * their address is not reachable from a public API. The position of the
+     * plaintext is moved to its limit, the one of the ciphertext past the
+     * bytes written.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the PKCS#11 session associated with the token.
+     * @param mechanism The encryption mechanism to use (e.g., AES GCM).
+     * @param hKey Handle of the encryption key.
+     * @param plaintext The data to encrypt.
+     * @param ciphertext Where the encrypted data is written; see
+     * {@link #outputLength} for the room it needs.
+     * @return The number of bytes written to the ciphertext buffer.
+     * @throws PKCS11Exception If the token fails to encrypt the data.
+     */
+    public static int encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer plaintext, ByteBuffer ciphertext) throws PKCS11Exception {
+        Cryptoki.C_EncryptInit(p11, hSession, mechanism, hKey);
+        return singlePart(p11, hSession, true, plaintext, ciphertext);
+    }
+
+    /**
+     * Decrypts the remaining bytes of a buffer into another one, see
+     * {@link #encrypt(PKCS11, long, CK_MECHANISM, long, ByteBuffer, ByteBuffer)}.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the PKCS#11 session associated with the token.
+     * @param mechanism The decryption mechanism to use (e.g., AES GCM).
+     * @param hKey Handle of the decryption key.
+     * @param ciphertext The data to decrypt.
+     * @param plaintext Where the decrypted data is written; see
+     * {@link #outputLength} for the room it needs.
+     * @return The number of bytes written to the plaintext buffer.
+     * @throws PKCS11Exception If the token fails to decrypt the data.
+     */
+    public static int decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer ciphertext, ByteBuffer plaintext) throws PKCS11Exception {
+        Cryptoki.C_DecryptInit(p11, hSession, mechanism, hKey);
+        return singlePart(p11, hSession, false, ciphertext, plaintext);
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer into a direct buffer taken
+     * from a pool, sized from the mechanism.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the PKCS#11 session associated with the token.
+     * @param mechanism The encryption mechanism to use (e.g., AES GCM).
+     * @param hKey Handle of the encryption key.
+     * @param plaintext The data to encrypt.
+     * @param buffers The pool the ciphertext buffer is taken from.
+     * @return The encrypted data, ready to be read; the caller releases it
+     * to the pool.
+     * @throws PKCS11Exception If the token fails to encrypt the data.
+     */
+    public static ByteBuffer encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer plaintext, DirectBufferPool buffers) throws PKCS11Exception {
+        ByteBuffer ciphertext = buffers.acquire(outputLength(mechanism, plaintext.remaining(), true));
+        try {
+            encrypt(p11, hSession, mechanism, hKey, plaintext, ciphertext);
+        } catch (PKCS11Exception | RuntimeException ex) {
+            buffers.release(ciphertext);
+            throw ex;
+        }
+        return ciphertext.flip();
+    }
+
+    /**
+     * Decrypts the remaining bytes of a buffer into a direct buffer taken
+     * from a pool, sized from the mechanism.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the PKCS#11 session associated with the token.
+     * @param mechanism The decryption mechanism to use (e.g., AES GCM).
+     * @param hKey Handle of the decryption key.
+     * @param ciphertext The data to decrypt.
+     * @param buffers The pool the plaintext buffer is taken from.
+     * @return The decrypted data, ready to be read; the caller releases it
+     * to the pool.
+     * @throws PKCS11Exception If the token fails to decrypt the data.
+     */
+    public static ByteBuffer decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ByteBuffer ciphertext, DirectBufferPool buffers) throws PKCS11Exception {
+        ByteBuffer plaintext = buffers.acquire(outputLength(mechanism, ciphertext.remaining(), false));
+        try {
+            decrypt(p11, hSession, mechanism, hKey, ciphertext, plaintext);
+        } catch (PKCS11Exception | RuntimeException ex) {
+            buffers.release(plaintext);
+            throw ex;
+        }
+        return plaintext.flip();
+    }
+
+    /**
+     * Room needed for the output of a single-part encryption or decryption.
+     * <p>
+     * Exact for the block and stream modes, an upper bound for the padded and
+     * authenticated ones (the largest GCM tag is assumed) and for RSA (the
+     * largest modulus is assumed). Other mechanisms get the input length
+     * plus a block of slack.
+     *
+     * @param mechanism The mechanism.
+     * @param inputLength Length of the input.
+     * @param encrypt true for an encryption, false for a decryption.
+     * @return The number of bytes the output buffer must have room for.
+     */
+    public static int outputLength(CK_MECHANISM mechanism, int inputLength, boolean encrypt) {
+        long m = mechanism.mechanism;
+        if (m == PKCS11Constants.CKM_AES_ECB || m == PKCS11Constants.CKM_AES_CBC || m == PKCS11Constants.CKM_AES_CTR
+                || m == PKCS11Constants.CKM_DES3_ECB || m == PKCS11Constants.CKM_DES3_CBC) {
+            return inputLength;
+        }
+        if (m == PKCS11Constants.CKM_AES_CBC_PAD) {
+            return encrypt ? (inputLength / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE : inputLength;
+        }
+        if (m == PKCS11Constants.CKM_DES3_CBC_PAD) {
+            return encrypt ? (inputLength / DES_BLOCK_SIZE + 1) * DES_BLOCK_SIZE : inputLength;
+        }
+        if (m == PKCS11Constants.CKM_AES_GCM) {
+            return encrypt ? inputLength + MAX_GCM_TAG_LENGTH : inputLength;
+        }
+        if (m == PKCS11Constants.CKM_RSA_PKCS || m == PKCS11Constants.CKM_RSA_PKCS_OAEP || m == PKCS11Constants.CKM_RSA_X_509) {
+            return MAX_RSA_MODULUS_LENGTH;
+        }
+        return inputLength + CHUNK_SLACK;
+    }
+
+    /* run an initialised encrypt or decrypt operation from a buffer into another */
+    private static int singlePart(PKCS11 p11, long hSession, boolean encrypt, ByteBuffer in, ByteBuffer out) throws PKCS11Exception {
+        if (out.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        int inLen = in.remaining();
+        byte[] inArray;
+        int inOfs;
+        if (in.hasArray()) {
+            inArray = in.array();
+            inOfs = in.arrayOffset() + in.position();
+        } else {
+            /* direct or read-only buffer: its content is only reachable by a copy */
+            inArray = new byte[inLen];
+            inOfs = 0;
+            in.duplicate().get(inArray);
+        }
+
+        byte[] outArray;
+        int outOfs;
+        if (out.hasArray()) {
+            outArray = out.array();
+            outOfs = out.arrayOffset() + out.position();
+        } else {
+            outArray = new byte[out.remaining()];
+            outOfs = 0;
+        }
+
+        try {
+            int written;
+            if (encrypt) {
+                written = Cryptoki.C_Encrypt(p11, hSession, 0L, inArray, inOfs, inLen, 0L, outArray, outOfs, out.remaining());
+            } else {
+                written = Cryptoki.C_Decrypt(p11, hSession, 0L, inArray, inOfs, inLen, 0L, outArray, outOfs, out.remaining());
+            }
+            in.position(in.limit());
+            if (out.hasArray()) {
+                out.position(out.position() + written);
+            } else {
+                out.put(outArray, 0, written);
+            }
+            return written;
+        } finally {
+            /* the copies may hold plaintext */
+            if (!in.hasArray()) {
+                Arrays.fill(inArray, (byte) 0);
+            }
+            if (!out.hasArray()) {
+                Arrays.fill(outArray, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Encrypts a stream chunk by chunk with <code>C_EncryptUpdate</code> and
+     * <code>C_EncryptFinal</code>, so that payloads of any size are processed
+     * in constant memory.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the PKCS#11 session associated with the token.
+     * @param mechanism The encryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle of the encryption key.
+     * @param plaintext Stream of data to encrypt, read until its end.
+     * @param ciphertext Stream the encrypted data is written to.
+     * @return The number of bytes written to the ciphertext stream.
+     * @throws PKCS11Exception If the token fails to encrypt the data.
+     * @throws IOException If reading or writing one of the streams fails.
+     */
+    public static long encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, InputStream plaintext, OutputStream ciphertext) throws PKCS11Exception, IOException {
+        Cryptoki.C_EncryptInit(p11, hSession, mechanism, hKey);
+        return multiPart(p11, hSession, true, plaintext, ciphertext);
+    }
+
+    /**
+     * Decrypts a stream chunk by chunk with <code>C_DecryptUpdate</code> and
+     * <code>C_DecryptFinal</code>, so that payloads of any size are processed
+     * in constant memory. Mechanisms whose decryption only releases data in
+     * the final call, such as AES-GCM on most tokens, cannot be streamed.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the PKCS#11 session associated with the token.
+     * @param mechanism The decryption mechanism to use (e.g., AES CBC PAD).
+     * @param hKey Handle of the decryption key.
+     * @param ciphertext Stream of data to decrypt, read until its end.
+     * @param plaintext Stream the decrypted data is written to.
+     * @return The number of bytes written to the plaintext stream.
+     * @throws PKCS11Exception If the token fails to decrypt the data.
+     * @throws IOException If reading or writing one of the streams fails.
+     */
+    public static long decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, InputStream ciphertext, OutputStream plaintext) throws PKCS11Exception, IOException {
+        Cryptoki.C_DecryptInit(p11, hSession, mechanism, hKey);
+        return multiPart(p11, hSession, false, ciphertext, plaintext);
+    }
+
+    /**
+     * Encrypts the content of a channel into another one, see
+     * {@link #encrypt(PKCS11, long, CK_MECHANISM, long, InputStream, OutputStream)}.
+     */
+    public static long encrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ReadableByteChannel plaintext, WritableByteChannel ciphertext) throws PKCS11Exception, IOException {
+        return encrypt(p11, hSession, mechanism, hKey, Channels.newInputStream(plaintext), Channels.newOutputStream(ciphertext));
+    }
+
+    /**
+     * Decrypts the content of a channel into another one, see
+     * {@link #decrypt(PKCS11, long, CK_MECHANISM, long, InputStream, OutputStream)}.
+     */
+    public static long decrypt(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey, ReadableByteChannel ciphertext, WritableByteChannel plaintext) throws PKCS11Exception, IOException {
+        return decrypt(p11, hSession, mechanism, hKey, Channels.newInputStream(ciphertext), Channels.newOutputStream(plaintext));
+    }
+
+    /* run an initialised encrypt or decrypt operation over a whole stream */
+    private static long multiPart(PKCS11 p11, long hSession, boolean encrypt, InputStream in, OutputStream out) throws PKCS11Exception, IOException {
+        byte[] inBuf = new byte[CHUNK_SIZE];
+        byte[] outBuf = new byte[CHUNK_SIZE + CHUNK_SLACK];
+        long total = 0;
+        int read;
+        int written;
+
+        try {
+            while ((read = in.readNBytes(inBuf, 0, inBuf.length)) > 0) {
+                if (encrypt) {
+                    written = Cryptoki.C_EncryptUpdate(p11, hSession, 0L, inBuf, 0, read, 0L, outBuf, 0, outBuf.length);
+                } else {
+                    written = Cryptoki.C_DecryptUpdate(p11, hSession, 0L, inBuf, 0, read, 0L, outBuf, 0, outBuf.length);
+                }
+                out.write(outBuf, 0, written);
+                total += written;
+            }
+        } catch (IOException ex) {
+            /* terminate the active operation so that the session can be reused */
+            try {
+                if (encrypt) {
+                    Cryptoki.C_EncryptFinal(p11, hSession, 0L, outBuf, 0, outBuf.length);
+                } else {
+                    Cryptoki.C_DecryptFinal(p11, hSession, 0L, outBuf, 0, outBuf.length);
+                }
+            } catch (PKCS11Exception ignored) {
+                /* the I/O error is the one to report */
+            }
+            throw ex;
+        }
+
+        if (encrypt) {
+            written = Cryptoki.C_EncryptFinal(p11, hSession, 0L, outBuf, 0, outBuf.length);
+        } else {
+            written = Cryptoki.C_DecryptFinal(p11, hSession, 0L, outBuf, 0, outBuf.length);
+        }
+        out.write(outBuf, 0, written);
+        out.flush();
+        return total + written;
     }
 
     /**
@@ -46,17 +398,166 @@ public class Cryptography {
      * @param data data to hash from
      *
      * @param dataLen length of the data to hash
+     *
+     * @return the hash of the data
      */
     public static byte[] shaHashData(PKCS11 p11, long hSession, CK_MECHANISM hashMech,
             byte[] data,
             long dataLen) throws PKCS11Exception {
 
-        byte[] hash = null;
+        byte[] hash = new byte[MAX_DIGEST_LENGTH];
+
+        /* start the digest operation */
+        int hashLen = Cryptoki.C_DigestSingle(p11, hSession, hashMech, data, 0, (int) dataLen, hash, 0, hash.length);
+
+        return Arrays.copyOf(hash, hashLen);
+    }
+
+    /**
+     * Generate a hash on the content of a file.
+     * <p>
+     * The file is mapped in memory one window at a time and each window is
+     * fed to <code>C_DigestUpdate</code> through one reused chunk, so the heap
+     * used does not grow with the file.
+     *
+     * @param hSession handle of an open session.
+     *
+     * @param file the file to hash
+     *
+     * @return the hash of the file, with the throughput of the operation
+     */
+    public static DigestResult shaHashFile(PKCS11 p11, long hSession, CK_MECHANISM hashMech,
+            Path file) throws PKCS11Exception, IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return shaHashChannel(p11, hSession, hashMech, channel);
+        }
+    }
+
+    /**
+     * Generate a hash on the content of a channel, read until its end.
+     * <p>
+     * File channels are mapped in memory by windows of {@link #MAP_WINDOW_SIZE}
+     * bytes; other channels are read directly. In both cases the data goes to
+     * the token through one chunk of {@link #CHUNK_SIZE} bytes.
+     *
+     * @param hSession handle of an open session.
+     *
+     * @param channel the channel to hash
+     *
+     * @return the hash of the data, with the throughput of the operation
+     */
+    public static DigestResult shaHashChannel(PKCS11 p11, long hSession, CK_MECHANISM hashMech,
+            ReadableByteChannel channel) throws PKCS11Exception, IOException {
+
+        long start = System.nanoTime();
+        long total = 0;
 
         /* start the digest operation */
-        p11.C_DigestSingle(hSession, hashMech, data, 0, data.length, hash, 0, data.length);
+        Cryptoki.C_DigestInit(p11, hSession, hashMech);
 
-        return hash;
+        byte[] chunk = new byte[CHUNK_SIZE];
+
+        try {
+            if (channel instanceof FileChannel) {
+                FileChannel file = (FileChannel) channel;
+                long position = file.position();
+                long size = file.size();
+
+                while (position < size) {
+                    int window = (int) Math.min(MAP_WINDOW_SIZE, size - position);
+                    MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, position, window);
+                    while (mapped.hasRemaining()) {
+                        int len = Math.min(chunk.length, mapped.remaining());
+                        mapped.get(chunk, 0, len);
+                        Cryptoki.C_DigestUpdate(p11, hSession, 0L, chunk, 0, len);
+                    }
+                    position += window;
+                    total += window;
+                }
+                file.position(position);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+                while (channel.read(buffer) >= 0) {
+                    if (!buffer.hasRemaining()) {
+                        Cryptoki.C_DigestUpdate(p11, hSession, 0L, chunk, 0, buffer.position());
+                        total += buffer.position();
+                        buffer.clear();
+                    }
+                }
+                if (buffer.position() > 0) {
+                    Cryptoki.C_DigestUpdate(p11, hSession, 0L, chunk, 0, buffer.position());
+                    total += buffer.position();
+                }
+            }
+        } catch (IOException ex) {
+            /* terminate the active operation so that the session can be reused */
+            try {
+                Cryptoki.C_DigestFinal(p11, hSession, new byte[MAX_DIGEST_LENGTH], 0, MAX_DIGEST_LENGTH);
+            } catch (PKCS11Exception ignored) {
+                /* the I/O error is the one to report */
+            }
+            throw ex;
+        }
+
+        byte[] hash = new byte[MAX_DIGEST_LENGTH];
+        int hashLen = Cryptoki.C_DigestFinal(p11, hSession, hash, 0, hash.length);
+
+        return new DigestResult(Arrays.copyOf(hash, hashLen), total, System.nanoTime() - start);
+    }
+
+    /**
+     * Hash of a file or channel, with the figures of the digest operation.
+     */
+    public static class DigestResult {
+
+        private final byte[] hash;
+        private final long length;
+        private final long elapsedNanos;
+
+        DigestResult(byte[] hash, long length, long elapsedNanos) {
+            this.hash = hash;
+            this.length = length;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return The hash of the data.
+         */
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        /**
+         * @return The number of bytes hashed.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The time spent hashing, in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return The throughput of the operation, in megabytes per second.
+         */
+        public double getThroughput() {
+            if (elapsedNanos == 0) {
+                return 0;
+            }
+            return (length / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes hashed in %.3f ms (%.2f MB/s)",
+                    length, elapsedNanos / 1e6, getThroughput());
+        }
     }
 
     /**
@@ -70,7 +571,7 @@ public class Cryptography {
      *
      * @param hashLen the length of the hash
      */
-    static byte[] Sign(PKCS11 p11, long hSession, CK_MECHANISM signMech,
+    public static byte[] Sign(PKCS11 p11, long hSession, CK_MECHANISM signMech,
             long hPrivateKey,
             byte[] hash,
             long hashLen) throws PKCS11Exception {
@@ -78,10 +579,10 @@ public class Cryptography {
         byte[] signature = null;
 
         /* start the sign operation */
-        p11.C_SignInit(hSession, signMech, hPrivateKey);
+        Cryptoki.C_SignInit(p11, hSession, signMech, hPrivateKey);
 
         /* do the sign */
-        signature = p11.C_Sign(hSession, hash);
+        signature = Cryptoki.C_Sign(p11, hSession, hash);
 
         return signature;
     }
@@ -97,7 +598,7 @@ public class Cryptography {
      *
      * @param dataLen the length of the data
      */
-    static byte[] HashSign(PKCS11 p11, long hSession, CK_MECHANISM signMech,
+    public static byte[] HashSign(PKCS11 p11, long hSession, CK_MECHANISM signMech,
             long hPrivateKey,
             byte[] data,
             long dataLen) throws PKCS11Exception {
@@ -106,11 +607,11 @@ public class Cryptography {
 
 
         /* start the sign operation */
-        p11.C_SignInit(hSession, signMech, hPrivateKey);
+        Cryptoki.C_SignInit(p11, hSession, signMech, hPrivateKey);
 
 
         /* do the sign */
-        signature = p11.C_Sign(hSession, data);
+        signature = Cryptoki.C_Sign(p11, hSession, data);
 
         return signature;
     }
@@ -130,7 +631,7 @@ public class Cryptography {
      *
      * @param signatureLen length of the signature
      */
-    static void HashVerify(PKCS11 p11, long hSession, CK_MECHANISM verifyMech,
+    public static void HashVerify(PKCS11 p11, long hSession, CK_MECHANISM verifyMech,
             long hPublicKey,
             byte[] data,
             long dataLen,
@@ -138,10 +639,188 @@ public class Cryptography {
             long signatureLen) throws PKCS11Exception {
 
         /* start the verify operation */
-        p11.C_VerifyInit(hSession, verifyMech, hPublicKey);
+        Cryptoki.C_VerifyInit(p11, hSession, verifyMech, hPublicKey);
 
         /* verify the signature against the hash */
-        p11.C_Verify(hSession, data, signature);
+        Cryptoki.C_Verify(p11, hSession, data, signature);
+    }
+
+    /**
+     * Hash some raw data in the JVM and sign the hash on the token.
+     * <p>
+     * Produces the same signature as {@link #HashSign} with the same
+     * mechanism, but only the hash crosses to the token: the data is hashed
+     * with {@link MessageDigest} and signed with the matching raw mechanism
+     * (CKM_ECDSA, or CKM_RSA_PKCS over the DigestInfo of the hash).
+     *
+     * @param hSession handle to an open session
+     *
+     * @param signMech hash-and-sign mechanism, e.g. CKM_ECDSA_SHA256 or CKM_SHA256_RSA_PKCS
+     *
+     * @param hPrivateKey handle to the private key to sign with
+     *
+     * @param data the data to hash and sign
+     *
+     * @param dataLen the length of the data
+     */
+    public static byte[] HashSignLocally(PKCS11 p11, long hSession, CK_MECHANISM signMech,
+            long hPrivateKey,
+            byte[] data,
+            long dataLen) throws PKCS11Exception {
+
+        LocalHash localHash = localHash(signMech);
+        MessageDigest digest = localHash.newDigest();
+        digest.update(data, 0, (int) dataLen);
+
+        byte[] encoded = localHash.encode(digest.digest());
+        return Sign(p11, hSession, localHash.rawMechanism(), hPrivateKey, encoded, encoded.length);
+    }
+
+    /**
+     * Hash a file in the JVM and sign the hash on the token.
+     * <p>
+     * The file is mapped in memory by windows of {@link #MAP_WINDOW_SIZE}
+     * bytes, so that large documents are neither copied on the heap nor sent
+     * to the token.
+     *
+     * @param hSession handle to an open session
+     *
+     * @param signMech hash-and-sign mechanism, e.g. CKM_ECDSA_SHA256 or CKM_SHA256_RSA_PKCS
+     *
+     * @param hPrivateKey handle to the private key to sign with
+     *
+     * @param file the file to hash and sign
+     */
+    public static byte[] HashSignLocally(PKCS11 p11, long hSession, CK_MECHANISM signMech,
+            long hPrivateKey,
+            Path file) throws PKCS11Exception, IOException {
+
+        LocalHash localHash = localHash(signMech);
+        byte[] encoded = localHash.encode(hashFile(localHash.newDigest(), file));
+        return Sign(p11, hSession, localHash.rawMechanism(), hPrivateKey, encoded, encoded.length);
+    }
+
+    /**
+     * Verify a hashed signature of some raw data, hashing the data in the JVM
+     * and verifying the hash on the token.
+     *
+     * @param hSession handle to an open session
+     *
+     * @param verifyMech hash-and-sign mechanism, e.g. CKM_ECDSA_SHA256 or CKM_SHA256_RSA_PKCS
+     *
+     * @param hPublicKey public key to verify with
+     *
+     * @param data data to verify against
+     *
+     * @param dataLen length of the data to verify against
+     *
+     * @param signature hashed signature of the data to verify against
+     *
+     * @param signatureLen length of the signature
+     */
+    public static void HashVerifyLocally(PKCS11 p11, long hSession, CK_MECHANISM verifyMech,
+            long hPublicKey,
+            byte[] data,
+            long dataLen,
+            byte[] signature,
+            long signatureLen) throws PKCS11Exception {
+
+        LocalHash localHash = localHash(verifyMech);
+        MessageDigest digest = localHash.newDigest();
+        digest.update(data, 0, (int) dataLen);
+
+        byte[] encoded = localHash.encode(digest.digest());
+        Verify(p11, hSession, localHash.rawMechanism(), hPublicKey, encoded, encoded.length, signature, signatureLen);
+    }
+
+    /**
+     * Verify a hashed signature of a file, hashing the file in the JVM and
+     * verifying the hash on the token.
+     *
+     * @param hSession handle to an open session
+     *
+     * @param verifyMech hash-and-sign mechanism, e.g. CKM_ECDSA_SHA256 or CKM_SHA256_RSA_PKCS
+     *
+     * @param hPublicKey public key to verify with
+     *
+     * @param file the file to verify against
+     *
+     * @param signature hashed signature of the file to verify against
+     */
+    public static void HashVerifyLocally(PKCS11 p11, long hSession, CK_MECHANISM verifyMech,
+            long hPublicKey,
+            Path file,
+            byte[] signature) throws PKCS11Exception, IOException {
+
+        LocalHash localHash = localHash(verifyMech);
+        byte[] encoded = localHash.encode(hashFile(localHash.newDigest(), file));
+        Verify(p11, hSession, localHash.rawMechanism(), hPublicKey, encoded, encoded.length, signature, signature.length);
+    }
+
+    /**
+     * @param mechanism A signature mechanism.
+     * @return true if {@link #HashSignLocally} and {@link #HashVerifyLocally}
+     * can hash for it in the JVM.
+     */
+    public static boolean canHashLocally(long mechanism) {
+        return LOCAL_HASHES.containsKey(mechanism);
+    }
+
+    private static LocalHash localHash(CK_MECHANISM mechanism) throws PKCS11Exception {
+        LocalHash localHash = LOCAL_HASHES.get(mechanism.mechanism);
+        if (localHash == null) {
+            /* fail the way the token would for a mechanism it does not know */
+            throw new PKCS11Exception(MechanismRegistry.CKR_MECHANISM_INVALID, null);
+        }
+        return localHash;
+    }
+
+    /* SHA-2 chains its blocks, a single hash cannot be split between threads */
+    private static byte[] hashFile(MessageDigest digest, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            long size = channel.size();
+
+            while (position < size) {
+                int window = (int) Math.min(MAP_WINDOW_SIZE, size - position);
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, window));
+                position += window;
+            }
+        }
+        return digest.digest();
+    }
+
+    /* digest algorithm, raw signature mechanism and DigestInfo prefix of a hash-and-sign mechanism */
+    private static final class LocalHash {
+
+        private final String algorithm;
+        private final long rawMechanism;
+        private final byte[] prefix;
+
+        LocalHash(String algorithm, long rawMechanism, String prefix) {
+            this.algorithm = algorithm;
+            this.rawMechanism = rawMechanism;
+            this.prefix = HexFormat.of().parseHex(prefix);
+        }
+
+        MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                /* every JRE provides SHA-1 and SHA-2 */
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        CK_MECHANISM rawMechanism() {
+            return new CK_MECHANISM(rawMechanism);
+        }
+
+        byte[] encode(byte[] hash) {
+            byte[] encoded = Arrays.copyOf(prefix, prefix.length + hash.length);
+            System.arraycopy(hash, 0, encoded, prefix.length, hash.length);
+            return encoded;
+        }
     }
 
     /**
@@ -159,7 +838,7 @@ public class Cryptography {
      *
      * @param signatureLen length of the signature
      */
-    static void Verify(PKCS11 p11, long hSession, CK_MECHANISM verifyMech,
+    public static void Verify(PKCS11 p11, long hSession, CK_MECHANISM verifyMech,
             long hPublicKey,
             byte[] hash,
             long hashLen,
@@ -167,9 +846,9 @@ public class Cryptography {
             long signatureLen) throws PKCS11Exception {
 
         /* start the verify operation */
-        p11.C_VerifyInit(hSession, verifyMech, hPublicKey);
+        Cryptoki.C_VerifyInit(p11, hSession, verifyMech, hPublicKey);
 
         /* verify the signature against the hash */
-        p11.C_Verify(hSession, hash, signature);
+        Cryptoki.C_Verify(p11, hSession, hash, signature);
     }
 }
@@ -0,0 +1,321 @@
+package pkcs11.jsun;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_INFO;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.CK_MECHANISM_INFO;
+import sun.security.pkcs11.wrapper.CK_NOTIFY;
+import sun.security.pkcs11.wrapper.CK_SESSION_INFO;
+import sun.security.pkcs11.wrapper.CK_SLOT_INFO;
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Measured access to the Cryptoki functions.
+ * <p>
+ * Every method calls the function of the same name on the PKCS#11 wrapper and
+ * records its latency and outcome in the {@link CallStats} of the function,
+ * slot and mechanism. All the Cryptoki calls of the project go through this
+ * class, e.g. <code>Cryptoki.C_Sign(p11, hSession, data)</code> rather than
+ * <code>p11.C_Sign(hSession, data)</code>.
+ * <p>
+ * Sessions opened here are remembered with their slot, and the mechanism given
+ * to an <code>*Init</code> function is remembered with its session, so that
+ * the calls taking only a session handle are attributed to the right slot and
+ * mechanism.
+ */
+public class Cryptoki {
+
+    /* slot of the calls whose session was not opened through this class */
+    static final long UNKNOWN_SLOT = -1;
+
+    private static final Map<Long, Long> sessionSlots = new ConcurrentHashMap<>();
+    private static final Map<Long, Long> sessionMechanisms = new ConcurrentHashMap<>();
+
+    private Cryptoki() {
+    }
+
+    /* a Cryptoki call returning a value */
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws PKCS11Exception;
+    }
+
+    /* a Cryptoki call returning nothing */
+    @FunctionalInterface
+    private interface VoidCall {
+        void call() throws PKCS11Exception;
+    }
+
+    private static <T> T measure(String function, long slot, long mechanism, Call<T> call) throws PKCS11Exception {
+        if (!CallStats.isEnabled()) {
+            return call.call();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            CallStats.of(function, slot, mechanism).record(System.nanoTime() - start, failed);
+        }
+    }
+
+    private static void measure(String function, long slot, long mechanism, VoidCall call) throws PKCS11Exception {
+        measure(function, slot, mechanism, () -> {
+            call.call();
+            return null;
+        });
+    }
+
+    /* slot a session was opened on, or UNKNOWN_SLOT */
+    static long slotOf(long hSession) {
+        return sessionSlots.getOrDefault(hSession, UNKNOWN_SLOT);
+    }
+
+    private static long mechanismOf(long hSession) {
+        return sessionMechanisms.getOrDefault(hSession, CallStats.NO_MECHANISM);
+    }
+
+    private static void startOperation(long hSession, CK_MECHANISM mechanism) {
+        sessionMechanisms.put(hSession, mechanism.mechanism);
+    }
+
+    /*
+     * General purpose and slot functions
+     */
+
+    public static CK_INFO C_GetInfo(PKCS11 p11) throws PKCS11Exception {
+        return measure("C_GetInfo", UNKNOWN_SLOT, CallStats.NO_MECHANISM, () -> p11.C_GetInfo());
+    }
+
+    public static void C_Finalize(PKCS11 p11, Object pReserved) throws PKCS11Exception {
+        measure("C_Finalize", UNKNOWN_SLOT, CallStats.NO_MECHANISM, () -> p11.C_Finalize(pReserved));
+    }
+
+    public static long[] C_GetSlotList(PKCS11 p11, boolean tokenPresent) throws PKCS11Exception {
+        return measure("C_GetSlotList", UNKNOWN_SLOT, CallStats.NO_MECHANISM, () -> p11.C_GetSlotList(tokenPresent));
+    }
+
+    public static CK_SLOT_INFO C_GetSlotInfo(PKCS11 p11, long slotId) throws PKCS11Exception {
+        return measure("C_GetSlotInfo", slotId, CallStats.NO_MECHANISM, () -> p11.C_GetSlotInfo(slotId));
+    }
+
+    public static CK_TOKEN_INFO C_GetTokenInfo(PKCS11 p11, long slotId) throws PKCS11Exception {
+        return measure("C_GetTokenInfo", slotId, CallStats.NO_MECHANISM, () -> p11.C_GetTokenInfo(slotId));
+    }
+
+    public static long[] C_GetMechanismList(PKCS11 p11, long slotId) throws PKCS11Exception {
+        return measure("C_GetMechanismList", slotId, CallStats.NO_MECHANISM, () -> p11.C_GetMechanismList(slotId));
+    }
+
+    public static CK_MECHANISM_INFO C_GetMechanismInfo(PKCS11 p11, long slotId, long type) throws PKCS11Exception {
+        return measure("C_GetMechanismInfo", slotId, type, () -> p11.C_GetMechanismInfo(slotId, type));
+    }
+
+    /*
+     * Session functions
+     */
+
+    public static long C_OpenSession(PKCS11 p11, long slotId, long flags, Object pApplication, CK_NOTIFY notify) throws PKCS11Exception {
+        long hSession = measure("C_OpenSession", slotId, CallStats.NO_MECHANISM,
+                () -> p11.C_OpenSession(slotId, flags, pApplication, notify));
+        sessionSlots.put(hSession, slotId);
+        return hSession;
+    }
+
+    public static void C_CloseSession(PKCS11 p11, long hSession) throws PKCS11Exception {
+        try {
+            measure("C_CloseSession", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_CloseSession(hSession));
+        } finally {
+            sessionSlots.remove(hSession);
+            sessionMechanisms.remove(hSession);
+        }
+    }
+
+    public static CK_SESSION_INFO C_GetSessionInfo(PKCS11 p11, long hSession) throws PKCS11Exception {
+        return measure("C_GetSessionInfo", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_GetSessionInfo(hSession));
+    }
+
+    public static void C_Login(PKCS11 p11, long hSession, long userType, char[] pin) throws PKCS11Exception {
+        measure("C_Login", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_Login(hSession, userType, pin));
+    }
+
+    public static void C_Logout(PKCS11 p11, long hSession) throws PKCS11Exception {
+        measure("C_Logout", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_Logout(hSession));
+    }
+
+    /*
+     * Object management functions
+     */
+
+    public static long C_CreateObject(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        return measure("C_CreateObject", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_CreateObject(hSession, template));
+    }
+
+    public static void C_DestroyObject(PKCS11 p11, long hSession, long hObject) throws PKCS11Exception {
+        measure("C_DestroyObject", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_DestroyObject(hSession, hObject));
+    }
+
+    public static void C_GetAttributeValue(PKCS11 p11, long hSession, long hObject, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        measure("C_GetAttributeValue", slotOf(hSession), CallStats.NO_MECHANISM,
+                () -> p11.C_GetAttributeValue(hSession, hObject, template));
+    }
+
+    public static void C_SetAttributeValue(PKCS11 p11, long hSession, long hObject, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        measure("C_SetAttributeValue", slotOf(hSession), CallStats.NO_MECHANISM,
+                () -> p11.C_SetAttributeValue(hSession, hObject, template));
+    }
+
+    public static void C_FindObjectsInit(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        measure("C_FindObjectsInit", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_FindObjectsInit(hSession, template));
+    }
+
+    public static long[] C_FindObjects(PKCS11 p11, long hSession, long maxObjectCount) throws PKCS11Exception {
+        return measure("C_FindObjects", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_FindObjects(hSession, maxObjectCount));
+    }
+
+    public static void C_FindObjectsFinal(PKCS11 p11, long hSession) throws PKCS11Exception {
+        measure("C_FindObjectsFinal", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_FindObjectsFinal(hSession));
+    }
+
+    /*
+     * Encryption and decryption functions
+     */
+
+    public static void C_EncryptInit(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+        startOperation(hSession, mechanism);
+        measure("C_EncryptInit", slotOf(hSession), mechanism.mechanism, () -> p11.C_EncryptInit(hSession, mechanism, hKey));
+    }
+
+    public static int C_Encrypt(PKCS11 p11, long hSession, long directIn, byte[] in, int inOfs, int inLen,
+            long directOut, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
+        return measure("C_Encrypt", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_Encrypt(hSession, directIn, in, inOfs, inLen, directOut, out, outOfs, outLen));
+    }
+
+    public static int C_EncryptUpdate(PKCS11 p11, long hSession, long directIn, byte[] in, int inOfs, int inLen,
+            long directOut, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
+        return measure("C_EncryptUpdate", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_EncryptUpdate(hSession, directIn, in, inOfs, inLen, directOut, out, outOfs, outLen));
+    }
+
+    public static int C_EncryptFinal(PKCS11 p11, long hSession, long directOut, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
+        return measure("C_EncryptFinal", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_EncryptFinal(hSession, directOut, out, outOfs, outLen));
+    }
+
+    public static void C_DecryptInit(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+        startOperation(hSession, mechanism);
+        measure("C_DecryptInit", slotOf(hSession), mechanism.mechanism, () -> p11.C_DecryptInit(hSession, mechanism, hKey));
+    }
+
+    public static int C_Decrypt(PKCS11 p11, long hSession, long directIn, byte[] in, int inOfs, int inLen,
+            long directOut, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
+        return measure("C_Decrypt", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_Decrypt(hSession, directIn, in, inOfs, inLen, directOut, out, outOfs, outLen));
+    }
+
+    public static int C_DecryptUpdate(PKCS11 p11, long hSession, long directIn, byte[] in, int inOfs, int inLen,
+            long directOut, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
+        return measure("C_DecryptUpdate", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_DecryptUpdate(hSession, directIn, in, inOfs, inLen, directOut, out, outOfs, outLen));
+    }
+
+    public static int C_DecryptFinal(PKCS11 p11, long hSession, long directOut, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
+        return measure("C_DecryptFinal", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_DecryptFinal(hSession, directOut, out, outOfs, outLen));
+    }
+
+    /*
+     * Message digesting functions
+     */
+
+    public static void C_DigestInit(PKCS11 p11, long hSession, CK_MECHANISM mechanism) throws PKCS11Exception {
+        startOperation(hSession, mechanism);
+        measure("C_DigestInit", slotOf(hSession), mechanism.mechanism, () -> p11.C_DigestInit(hSession, mechanism));
+    }
+
+    public static int C_DigestSingle(PKCS11 p11, long hSession, CK_MECHANISM mechanism, byte[] in, int inOfs, int inLen,
+            byte[] digest, int digestOfs, int digestLen) throws PKCS11Exception {
+        return measure("C_DigestSingle", slotOf(hSession), mechanism.mechanism,
+                () -> p11.C_DigestSingle(hSession, mechanism, in, inOfs, inLen, digest, digestOfs, digestLen));
+    }
+
+    public static void C_DigestUpdate(PKCS11 p11, long hSession, long directIn, byte[] in, int inOfs, int inLen) throws PKCS11Exception {
+        measure("C_DigestUpdate", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_DigestUpdate(hSession, directIn, in, inOfs, inLen));
+    }
+
+    public static int C_DigestFinal(PKCS11 p11, long hSession, byte[] digest, int digestOfs, int digestLen) throws PKCS11Exception {
+        return measure("C_DigestFinal", slotOf(hSession), mechanismOf(hSession),
+                () -> p11.C_DigestFinal(hSession, digest, digestOfs, digestLen));
+    }
+
+    /*
+     * Signing and verifying functions
+     */
+
+    public static void C_SignInit(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+        startOperation(hSession, mechanism);
+        measure("C_SignInit", slotOf(hSession), mechanism.mechanism, () -> p11.C_SignInit(hSession, mechanism, hKey));
+    }
+
+    public static byte[] C_Sign(PKCS11 p11, long hSession, byte[] data) throws PKCS11Exception {
+        return measure("C_Sign", slotOf(hSession), mechanismOf(hSession), () -> p11.C_Sign(hSession, data));
+    }
+
+    public static void C_VerifyInit(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hKey) throws PKCS11Exception {
+        startOperation(hSession, mechanism);
+        measure("C_VerifyInit", slotOf(hSession), mechanism.mechanism, () -> p11.C_VerifyInit(hSession, mechanism, hKey));
+    }
+
+    public static void C_Verify(PKCS11 p11, long hSession, byte[] data, byte[] signature) throws PKCS11Exception {
+        measure("C_Verify", slotOf(hSession), mechanismOf(hSession), () -> p11.C_Verify(hSession, data, signature));
+    }
+
+    /*
+     * Key management functions
+     */
+
+    public static long C_GenerateKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        return measure("C_GenerateKey", slotOf(hSession), mechanism.mechanism, () -> p11.C_GenerateKey(hSession, mechanism, template));
+    }
+
+    public static long[] C_GenerateKeyPair(PKCS11 p11, long hSession, CK_MECHANISM mechanism,
+            CK_ATTRIBUTE[] publicKeyTemplate, CK_ATTRIBUTE[] privateKeyTemplate) throws PKCS11Exception {
+        return measure("C_GenerateKeyPair", slotOf(hSession), mechanism.mechanism,
+                () -> p11.C_GenerateKeyPair(hSession, mechanism, publicKeyTemplate, privateKeyTemplate));
+    }
+
+    public static byte[] C_WrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hWrappingKey, long hKey) throws PKCS11Exception {
+        return measure("C_WrapKey", slotOf(hSession), mechanism.mechanism, () -> p11.C_WrapKey(hSession, mechanism, hWrappingKey, hKey));
+    }
+
+    public static long C_UnwrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hUnwrappingKey,
+            byte[] wrappedKey, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        return measure("C_UnwrapKey", slotOf(hSession), mechanism.mechanism,
+                () -> p11.C_UnwrapKey(hSession, mechanism, hUnwrappingKey, wrappedKey, template));
+    }
+
+    public static long C_DeriveKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hBaseKey, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        return measure("C_DeriveKey", slotOf(hSession), mechanism.mechanism, () -> p11.C_DeriveKey(hSession, mechanism, hBaseKey, template));
+    }
+
+    /*
+     * Random number generation functions
+     */
+
+    public static void C_SeedRandom(PKCS11 p11, long hSession, byte[] seed) throws PKCS11Exception {
+        measure("C_SeedRandom", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_SeedRandom(hSession, seed));
+    }
+
+    public static void C_GenerateRandom(PKCS11 p11, long hSession, byte[] randomData) throws PKCS11Exception {
+        measure("C_GenerateRandom", slotOf(hSession), CallStats.NO_MECHANISM, () -> p11.C_GenerateRandom(hSession, randomData));
+    }
+}
@@ -0,0 +1,174 @@
+package pkcs11.jsun;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable direct buffers, for the callers whose data lives off-heap, e.g.
+ * the buffers of an NIO network stack.
+ * <p>
+ * Allocating a direct buffer is expensive and its memory is only given back
+ * when the buffer is collected, so buffers are kept once released and handed
+ * out again. Buffers are grouped by capacity, in powers of two from
+ * {@link #MIN_CAPACITY}; a request is served by the smallest group that fits
+ * it. Requests above the largest pooled capacity get a buffer of their own,
+ * dropped on release.
+ * <p>
+ * Buffers hold plaintext and key material: a released buffer is zeroed over
+ * its whole capacity before it is kept or dropped, so that its content is
+ * neither handed to the next caller nor left in native memory.
+ * <p>
+ * The pool remembers the buffers it handed out: releasing any other buffer,
+ * or the same buffer twice, is ignored, so a buffer is never queued twice
+ * nor a caller's own buffer wiped. A buffer that is never released stays
+ * referenced by the pool.
+ * <p>
+ * Usage :
+ * <pre>
+ * ByteBuffer ciphertext = Cryptography.encrypt(p11, hSession, mechanism, hKey, plaintext, buffers);
+ * try { channel.write(ciphertext); } finally { buffers.release(ciphertext); }
+ * </pre>
+ */
+public class DirectBufferPool {
+
+    /**
+     * Capacity of the smallest pooled buffers.
+     */
+    public static final int MIN_CAPACITY = 4 * 1024;
+
+    /**
+     * Default capacity of the largest pooled buffers.
+     */
+    public static final int DEFAULT_MAX_CAPACITY = 16 * 1024 * 1024;
+
+    /**
+     * Default number of idle buffers kept per capacity.
+     */
+    public static final int DEFAULT_MAX_IDLE = 32;
+
+    /* zeroes copied over released buffers */
+    private static final byte[] ZEROS = new byte[MIN_CAPACITY];
+
+    private final int maxCapacity;
+    private final int maxIdle;
+    private final Queue<ByteBuffer>[] idle;
+    private final AtomicInteger[] idleCounts;
+    /* buffers handed out and not released yet, compared by identity */
+    private final Set<ByteBuffer> leased = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    /**
+     * Creates a pool with the default largest capacity and idle count.
+     */
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_CAPACITY, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * @param maxCapacity Capacity of the largest pooled buffers, rounded up
+     * to a power of two.
+     * @param maxIdle Number of idle buffers kept per capacity.
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(int maxCapacity, int maxIdle) {
+        if (maxCapacity < MIN_CAPACITY || maxCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid maximum capacity: " + maxCapacity);
+        }
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Idle count must not be negative: " + maxIdle);
+        }
+        int groups = group(maxCapacity) + 1;
+        this.maxCapacity = MIN_CAPACITY << (groups - 1);
+        this.maxIdle = maxIdle;
+        this.idle = new Queue[groups];
+        this.idleCounts = new AtomicInteger[groups];
+        for (int i = 0; i < groups; ++i) {
+            idle[i] = new ConcurrentLinkedQueue<>();
+            idleCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Takes a direct buffer of at least a given size.
+     *
+     * @param length Number of bytes needed.
+     * @return A buffer whose position is 0 and limit is <code>length</code>;
+     * its content is undefined.
+     */
+    public ByteBuffer acquire(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative: " + length);
+        }
+        if (length > maxCapacity) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            leased.add(buffer);
+            return buffer;
+        }
+
+        int group = group(length);
+        ByteBuffer buffer = idle[group].poll();
+        if (buffer != null) {
+            idleCounts[group].decrementAndGet();
+        } else {
+            buffer = ByteBuffer.allocateDirect(MIN_CAPACITY << group);
+        }
+        buffer.clear().limit(length);
+        leased.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Zeroes a buffer and gives it back. The caller must not use it afterwards.
+     *
+     * @param buffer A buffer returned by {@link #acquire} and not released
+     * yet, the very instance and not a duplicate or a slice of it; any other
+     * buffer is ignored and left untouched.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !leased.remove(buffer)) {
+            return;
+        }
+        wipe(buffer);
+        if (buffer.capacity() > maxCapacity) {
+            /* one of its own, dropped */
+            return;
+        }
+        int group = group(buffer.capacity());
+        if (idleCounts[group].incrementAndGet() <= maxIdle) {
+            idle[group].offer(buffer);
+        } else {
+            idleCounts[group].decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of idle buffers kept by the pool.
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (AtomicInteger idleCount : idleCounts) {
+            count += idleCount.get();
+        }
+        return count;
+    }
+
+    /* zero the whole capacity, whatever the position and limit */
+    private static void wipe(ByteBuffer buffer) {
+        ByteBuffer all = buffer.duplicate().clear();
+        while (all.hasRemaining()) {
+            all.put(ZEROS, 0, Math.min(ZEROS.length, all.remaining()));
+        }
+    }
+
+    /* index of the smallest power of two, from MIN_CAPACITY, holding length bytes */
+    private static int group(int length) {
+        if (length <= MIN_CAPACITY) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_CAPACITY);
+    }
+}
@@ -0,0 +1,412 @@
+package pkcs11.jsun;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Envelope encryption: the token only protects a data key, the payload is
+ * encrypted in the JVM.
+ * <p>
+ * For each object the token generates a fresh AES-256 data key and wraps it
+ * with a key encryption key that never leaves the token. The payload is
+ * encrypted with AES-GCM in the JVM, in segments, behind a header holding the
+ * wrapped data key. The token does one <code>C_WrapKey</code> per object, and
+ * one <code>C_UnwrapKey</code> to read it back, whatever the payload size.
+ * <p>
+ * Layout of an envelope:
+ * <pre>
+ * "P11E" | version (1) | wrap mechanism (4) | segment size (4) | nonce prefix (8)
+ *        | wrapped key length (2) | wrapped key
+ * segment 0 | segment 1 | ... each one AES-GCM(segment size bytes) || 16-byte tag
+ * </pre>
+ * The IV of a segment is the nonce prefix followed by the segment number. Every
+ * segment is authenticated together with the header and a flag marking the
+ * last segment, so that segments cannot be reordered, and the envelope cannot
+ * be truncated or have its header swapped without being detected.
+ */
+public class EnvelopeEncryption {
+
+    /**
+     * Default number of plaintext bytes per segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    /**
+     * Largest number of plaintext bytes per segment. Decryption allocates two
+     * segments up front, so larger values in a header are rejected.
+     */
+    public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default mechanism wrapping the data keys (RFC 3394).
+     */
+    public static final long DEFAULT_WRAP_MECHANISM = PKCS11Constants.CKM_AES_KEY_WRAP;
+
+    private static final byte[] MAGIC = {'P', '1', '1', 'E'};
+    private static final int VERSION = 1;
+    private static final int DATA_KEY_LENGTH = 32;
+    private static final int NONCE_PREFIX_LENGTH = 8;
+    private static final int TAG_LENGTH = 16;
+    private static final int MAX_WRAPPED_KEY_LENGTH = 0xFFFF;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Encrypts a stream with a new data key wrapped by the default mechanism,
+     * in segments of the default size.
+     *
+     * @see #encrypt(PKCS11, long, CK_MECHANISM, long, int, InputStream, OutputStream)
+     */
+    public static long encrypt(PKCS11 p11, long hSession, long hWrappingKey,
+            InputStream plaintext, OutputStream ciphertext) throws PKCS11Exception, IOException {
+        return encrypt(p11, hSession, new CK_MECHANISM(DEFAULT_WRAP_MECHANISM), hWrappingKey, DEFAULT_SEGMENT_SIZE, plaintext, ciphertext);
+    }
+
+    /**
+     * Encrypts a stream with a new data key generated and wrapped by the token.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open session.
+     * @param wrapMech Mechanism wrapping the data key; it must take no
+     * parameter, since only its type is kept in the header.
+     * @param hWrappingKey Handle of the key encryption key.
+     * @param segmentSize Number of plaintext bytes per segment, at most
+     * {@link #MAX_SEGMENT_SIZE}.
+     * @param plaintext The data to encrypt; not closed.
+     * @param ciphertext Where the envelope is written; not closed.
+     * @return The number of plaintext bytes encrypted.
+     * @throws PKCS11Exception If the data key cannot be generated or wrapped.
+     * @throws IOException If a stream cannot be read or written.
+     */
+    public static long encrypt(PKCS11 p11, long hSession, CK_MECHANISM wrapMech, long hWrappingKey, int segmentSize,
+            InputStream plaintext, OutputStream ciphertext) throws PKCS11Exception, IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+
+        /* the data key only lives on the token for the time of the wrap */
+        CK_ATTRIBUTE[] template = Arrays.copyOf(dataKeyTemplate(), dataKeyTemplate().length + 1);
+        template[template.length - 1] = new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE_LEN, (long) DATA_KEY_LENGTH);
+        long hDataKey = Cryptoki.C_GenerateKey(p11, hSession, new CK_MECHANISM(PKCS11Constants.CKM_AES_KEY_GEN), template);
+        byte[] wrappedKey;
+        byte[] keyValue;
+        try {
+            wrappedKey = ManageObjects.wrapKey(p11, hSession, wrapMech, hWrappingKey, hDataKey);
+            keyValue = readValue(p11, hSession, hDataKey);
+        } finally {
+            Cryptoki.C_DestroyObject(p11, hSession, hDataKey);
+        }
+
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        Header header = new Header(wrapMech.mechanism, segmentSize, noncePrefix, wrappedKey);
+
+        try {
+            return encrypt(header, new SecretKeySpec(keyValue, "AES"), plaintext, ciphertext);
+        } finally {
+            Arrays.fill(keyValue, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts an envelope, unwrapping its data key with the token.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open session.
+     * @param hUnwrappingKey Handle of the key encryption key.
+     * @param ciphertext The envelope; not closed.
+     * @param plaintext Where the decrypted data is written; not closed.
+     * @return The number of plaintext bytes decrypted.
+     * @throws PKCS11Exception If the data key cannot be unwrapped.
+     * @throws IOException If a stream cannot be read or written, or if the
+     * envelope is malformed or was tampered with.
+     */
+    public static long decrypt(PKCS11 p11, long hSession, long hUnwrappingKey,
+            InputStream ciphertext, OutputStream plaintext) throws PKCS11Exception, IOException {
+        Header header = Header.read(ciphertext);
+        byte[] keyValue = unwrapDataKey(p11, hSession, hUnwrappingKey, header);
+        try {
+            return decrypt(header, new SecretKeySpec(keyValue, "AES"), ciphertext, plaintext);
+        } finally {
+            Arrays.fill(keyValue, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts an envelope, taking its data key from a cache so that envelopes
+     * read again do not go through the token.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open session.
+     * @param hUnwrappingKey Handle of the key encryption key.
+     * @param cache Cache of the data keys, with the
+     * {@link UnwrappedKeyCache.Policy#KEY_MATERIAL} policy.
+     * @param ciphertext The envelope; not closed.
+     * @param plaintext Where the decrypted data is written; not closed.
+     * @return The number of plaintext bytes decrypted.
+     * @throws PKCS11Exception If the data key cannot be unwrapped.
+     * @throws IOException If a stream cannot be read or written, or if the
+     * envelope is malformed or was tampered with.
+     */
+    public static long decrypt(PKCS11 p11, long hSession, long hUnwrappingKey, UnwrappedKeyCache cache,
+            InputStream ciphertext, OutputStream plaintext) throws PKCS11Exception, IOException {
+        Header header = Header.read(ciphertext);
+        SecretKey dataKey = cache.getKey(hSession, new CK_MECHANISM(header.wrapMechanism), hUnwrappingKey,
+                header.wrappedKey, dataKeyTemplate(), "AES");
+        return decrypt(header, dataKey, ciphertext, plaintext);
+    }
+
+    /**
+     * Decrypts the segments of an envelope whose header was already read and
+     * whose data key is already known.
+     *
+     * @param header The header of the envelope.
+     * @param dataKey The unwrapped data key.
+     * @param ciphertext The envelope, positioned after its header; not closed.
+     * @param plaintext Where the decrypted data is written; not closed.
+     * @return The number of plaintext bytes decrypted.
+     * @throws IOException If a stream cannot be read or written, or if the
+     * envelope is malformed or was tampered with.
+     */
+    public static long decrypt(Header header, SecretKey dataKey, InputStream ciphertext, OutputStream plaintext) throws IOException {
+        byte[] aad = header.aad();
+        byte[] current = new byte[header.segmentSize + TAG_LENGTH];
+        byte[] next = new byte[current.length];
+        int currentLen = readFully(ciphertext, current);
+        long total = 0;
+
+        for (long segment = 0;; ++segment) {
+            /* a segment is the last one if nothing follows it */
+            int nextLen = currentLen == current.length ? readFully(ciphertext, next) : 0;
+            boolean last = nextLen == 0;
+            if (currentLen < TAG_LENGTH) {
+                throw new IOException("Truncated envelope");
+            }
+
+            byte[] decrypted = crypt(Cipher.DECRYPT_MODE, dataKey, header, segment, last, aad, current, currentLen);
+            plaintext.write(decrypted);
+            total += decrypted.length;
+            if (last) {
+                return total;
+            }
+
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLen = nextLen;
+        }
+    }
+
+    /**
+     * Unwraps the data key of an envelope and reads its value. The unwrapped
+     * key object is destroyed before returning.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open session.
+     * @param hUnwrappingKey Handle of the key encryption key.
+     * @param header The header of the envelope.
+     * @return The value of the data key; the caller should clear it after use.
+     * @throws PKCS11Exception If the data key cannot be unwrapped.
+     */
+    static byte[] unwrapDataKey(PKCS11 p11, long hSession, long hUnwrappingKey, Header header) throws PKCS11Exception {
+        long hDataKey = ManageObjects.unwrapKey(p11, hSession, new CK_MECHANISM(header.wrapMechanism), hUnwrappingKey,
+                header.wrappedKey, dataKeyTemplate());
+        try {
+            return readValue(p11, hSession, hDataKey);
+        } finally {
+            Cryptoki.C_DestroyObject(p11, hSession, hDataKey);
+        }
+    }
+
+    /* template of a data key: an extractable AES-256 session object */
+    static CK_ATTRIBUTE[] dataKeyTemplate() {
+        CK_ATTRIBUTE[] template = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_AES),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, false),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, false),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, true),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_ENCRYPT, true),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_DECRYPT, true)
+        };
+        return template;
+    }
+
+    private static long encrypt(Header header, SecretKey dataKey, InputStream plaintext, OutputStream ciphertext) throws IOException {
+        byte[] aad = header.aad();
+        ciphertext.write(aad);
+
+        byte[] current = new byte[header.segmentSize];
+        byte[] next = new byte[header.segmentSize];
+        int currentLen = readFully(plaintext, current);
+        long total = 0;
+
+        for (long segment = 0;; ++segment) {
+            /* read ahead to know whether this is the last segment, an empty payload is one empty segment */
+            int nextLen = currentLen == current.length ? readFully(plaintext, next) : 0;
+            boolean last = nextLen == 0;
+
+            ciphertext.write(crypt(Cipher.ENCRYPT_MODE, dataKey, header, segment, last, aad, current, currentLen));
+            total += currentLen;
+            if (last) {
+                ciphertext.flush();
+                return total;
+            }
+
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLen = nextLen;
+        }
+    }
+
+    private static byte[] crypt(int mode, SecretKey dataKey, Header header, long segment, boolean last,
+            byte[] aad, byte[] data, int len) throws IOException {
+        if (segment > 0xFFFFFFFFL) {
+            throw new IOException("Too many segments");
+        }
+        byte[] iv = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 4)
+                .put(header.noncePrefix)
+                .putInt((int) segment)
+                .array();
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, dataKey, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+            cipher.updateAAD(aad);
+            cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+            return cipher.doFinal(data, 0, len);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Segment " + segment + " cannot be " + (mode == Cipher.ENCRYPT_MODE ? "encrypted" : "authenticated"), ex);
+        }
+    }
+
+    private static byte[] readValue(PKCS11 p11, long hSession, long hKey) throws PKCS11Exception {
+        CK_ATTRIBUTE[] value = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE)
+        };
+        Cryptoki.C_GetAttributeValue(p11, hSession, hKey, value);
+        return value[0].getByteArray();
+    }
+
+    /* read until the buffer is full or the stream ends */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int len = 0;
+        while (len < buffer.length) {
+            int n = in.read(buffer, len, buffer.length - len);
+            if (n < 0) {
+                break;
+            }
+            len += n;
+        }
+        return len;
+    }
+
+    /**
+     * The header of an envelope.
+     */
+    public static class Header {
+
+        private final long wrapMechanism;
+        private final int segmentSize;
+        private final byte[] noncePrefix;
+        private final byte[] wrappedKey;
+
+        Header(long wrapMechanism, int segmentSize, byte[] noncePrefix, byte[] wrappedKey) {
+            if (wrappedKey.length > MAX_WRAPPED_KEY_LENGTH) {
+                throw new IllegalArgumentException("Wrapped key too long: " + wrappedKey.length);
+            }
+            this.wrapMechanism = wrapMechanism;
+            this.segmentSize = segmentSize;
+            this.noncePrefix = noncePrefix;
+            this.wrappedKey = wrappedKey;
+        }
+
+        /**
+         * Reads the header at the start of an envelope.
+         *
+         * @param in The envelope; left positioned on the first segment.
+         * @return The header.
+         * @throws IOException If the stream cannot be read or is not an envelope.
+         */
+        public static Header read(InputStream in) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                data.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC) || data.readUnsignedByte() != VERSION) {
+                    throw new IOException("Not an envelope, or unsupported version");
+                }
+                long wrapMechanism = data.readInt() & 0xFFFFFFFFL;
+                int segmentSize = data.readInt();
+                if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+                    throw new IOException("Malformed envelope: invalid segment size " + segmentSize);
+                }
+                byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+                data.readFully(noncePrefix);
+                byte[] wrappedKey = new byte[data.readUnsignedShort()];
+                data.readFully(wrappedKey);
+                return new Header(wrapMechanism, segmentSize, noncePrefix, wrappedKey);
+            } catch (EOFException ex) {
+                throw new IOException("Truncated envelope header", ex);
+            }
+        }
+
+        /**
+         * @return The mechanism the data key was wrapped with.
+         */
+        public long getWrapMechanism() {
+            return wrapMechanism;
+        }
+
+        /**
+         * @return The number of plaintext bytes per segment.
+         */
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        /**
+         * @return The wrapped data key.
+         */
+        public byte[] getWrappedKey() {
+            return wrappedKey.clone();
+        }
+
+        /* the serialized header, also authenticated with every segment */
+        byte[] aad() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeInt((int) wrapMechanism);
+                out.writeInt(segmentSize);
+                out.write(noncePrefix);
+                out.writeShort(wrappedKey.length);
+                out.write(wrappedKey);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
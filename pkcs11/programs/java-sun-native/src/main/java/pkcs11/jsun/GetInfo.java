@@ -1,11 +1,12 @@
 package pkcs11.jsun;
 
+import java.util.concurrent.TimeUnit;
+
 import sun.security.pkcs11.wrapper.CK_INFO;
 import sun.security.pkcs11.wrapper.CK_SLOT_INFO;
 import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
 import sun.security.pkcs11.wrapper.CK_VERSION;
 import sun.security.pkcs11.wrapper.PKCS11;
-import sun.security.pkcs11.wrapper.PKCS11Constants;
 import static sun.security.pkcs11.wrapper.PKCS11Constants.CKF_HW_SLOT;
 import static sun.security.pkcs11.wrapper.PKCS11Constants.CKF_LOGIN_REQUIRED;
 import static sun.security.pkcs11.wrapper.PKCS11Constants.CKF_REMOVABLE_DEVICE;
@@ -23,6 +24,8 @@ import sun.security.pkcs11.wrapper.PKCS11Exception;
  * <li>-info retrieve the General information
  * <li>-slot retrieve the Slot Information of the specified slot
  * <li>-token retrieve the Token Information of the token in the specified slot
+ * <li>-monitor &lt;seconds&gt; sample the capacity of all tokens until stopped
+ * <li>-format (json, prometheus) output format of the samples, default json
  * <li><i>slotId</i> the realted slot Id of the slot or token information to
  * retrieve, default (all)
  */
@@ -40,11 +43,14 @@ public class GetInfo {
      */
     public static void usage() {
         println("java ...GetInfo (-info, -slot, -token) [<slotId>]");
+        println("java ...GetInfo -monitor <seconds> [-format (json, prometheus)]");
         println("");
         println("-info          get the General information");
         println("-slot          get the Slot Information of the specified slot");
         println("-token         get the Token Information of the token in the specified slot");
         println("<slotId>       realted slot Id of the slot or token information to retrieve, default (all)");
+        println("-monitor       sample sessions and memory of all tokens every <seconds>, until stopped");
+        println("-format        output format of the samples, json lines (default) or prometheus text");
         println("");
 
         System.exit(1);
@@ -58,6 +64,8 @@ public class GetInfo {
         boolean bGetGeneralInfo = false;
         boolean bGetSlotInfo = false;
         boolean bGetTokenInfo = false;
+        long monitorInterval = 0;
+        TokenMonitor.Format format = TokenMonitor.Format.JSON;
 
         /*
          * process command line arguments
@@ -69,6 +77,33 @@ public class GetInfo {
                 bGetSlotInfo = true;
             } else if (args[i].equalsIgnoreCase("-token")) {
                 bGetTokenInfo = true;
+            } else if (args[i].equalsIgnoreCase("-monitor")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+
+                try {
+                    monitorInterval = Long.parseLong(args[i]);
+                } catch (NumberFormatException ex) {
+                    monitorInterval = 0;
+                }
+                if (monitorInterval <= 0) {
+                    println("Invalid interval :" + args[i]);
+                    println("");
+                    usage();
+                }
+            } else if (args[i].equalsIgnoreCase("-format")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+
+                if (args[i].equalsIgnoreCase("json")) {
+                    format = TokenMonitor.Format.JSON;
+                } else if (args[i].equalsIgnoreCase("prometheus")) {
+                    format = TokenMonitor.Format.PROMETHEUS;
+                } else {
+                    usage();
+                }
             } else if (args[i].startsWith("-")) {
                 usage();
             } else {
@@ -85,35 +120,42 @@ public class GetInfo {
         }
 
         /* no work to do - error */
-        if (!bGetGeneralInfo && !bGetSlotInfo && !bGetTokenInfo) {
+        if (!bGetGeneralInfo && !bGetSlotInfo && !bGetTokenInfo && monitorInterval == 0) {
             usage();
         }
 
         try {
-            String ptk7Windows = "Library";
+            /* the library is configured with pkcs11.library or PKCS11_LIBRARY */
+            PKCS11 p11 = Pkcs11Module.getInstance().getP11();
+
+            if (monitorInterval > 0) {
+                /* runs until the process is stopped */
+                int parallelism = Math.max(1, Cryptoki.C_GetSlotList(p11, true).length);
+                TokenMonitor monitor = new TokenMonitor(p11, format, System.out, parallelism);
+                monitor.start(monitorInterval, TimeUnit.SECONDS);
+                Thread.currentThread().join();
+            }
 
-            String library = Utils.setupLibrary(ptk7Windows);
-            PKCS11 p11 = PKCS11.getInstance(library, "C_GetFunctionList", null, false);
             if (bGetGeneralInfo) {
                 DisplayGeneralInformation(p11);
             }
 
             if (slotId == -1) {
-                /* display information for all slots */
-                long[] slotList = null;
-
-                /* get the slot list */
-                slotList = p11.C_GetSlotList(PKCS11Constants.TRUE);
+                /* display information for all slots, read in one pass */
+                SlotInfoCache.Snapshot snapshot = SlotInfoCache.read(p11);
 
+                /* enumerate over the slots with a token, displaying the relevant inforamtion */
+                for (long slot : snapshot.getSlots()) {
+                    if (!snapshot.isTokenPresent(slot)) {
+                        continue;
+                    }
 
-                /* enumerate over the list, displaying the relevant inforamtion */
-                for (int i = 0; i < slotList.length; ++i) {
                     if (bGetSlotInfo) {
-                        DisplaySlotInformation(p11, slotList[i]);
+                        DisplaySlotInformation(slot, snapshot.getSlotInfo(slot));
                     }
 
                     if (bGetTokenInfo) {
-                        DisplayTokenInformation(p11, slotList[i]);
+                        DisplayTokenInformation(slot, snapshot.getTokenInfo(slot));
                     }
                 }
             } else {
@@ -126,8 +168,6 @@ public class GetInfo {
                 }
             }
 
-            p11.C_Finalize(null);
-
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -145,7 +185,7 @@ public class GetInfo {
 
         println("General Info");
 
-        CK_INFO info = p11.C_GetInfo();
+        CK_INFO info = Cryptoki.C_GetInfo(p11);
 
         println("   Cryptoki Version   :" + versionString(info.cryptokiVersion));
         println("   Manufacturer       :" + new String(info.manufacturerID));
@@ -154,12 +194,14 @@ public class GetInfo {
     }
 
     static void DisplaySlotInformation(PKCS11 p11, long slotId) throws PKCS11Exception {
+        DisplaySlotInformation(slotId, Cryptoki.C_GetSlotInfo(p11, slotId));
+    }
+
+    static void DisplaySlotInformation(long slotId, CK_SLOT_INFO info) {
         String flagString = "";
 
         println("Slot ID " + slotId);
 
-        CK_SLOT_INFO info = p11.C_GetSlotInfo(slotId);
-
         println("   Description     :" + new String(info.slotDescription));
         println("   Manufacturer    :" + new String(info.manufacturerID));
         println("   Hardware Version:" + versionString(info.hardwareVersion));
@@ -187,12 +229,14 @@ public class GetInfo {
     }
 
     static void DisplayTokenInformation(PKCS11 p11, long slotId) throws Exception {
+        DisplayTokenInformation(slotId, Cryptoki.C_GetTokenInfo(p11, slotId));
+    }
+
+    static void DisplayTokenInformation(long slotId, CK_TOKEN_INFO info) {
         String flagString = "";
 
         println("Token for Slot ID " + slotId);
 
-        CK_TOKEN_INFO info = p11.C_GetTokenInfo(slotId);
-
         println("   Label           :" + new String(info.label));
         println("   Manufacturer    :" + new String(info.manufacturerID));
         println("   Model           :" + new String(info.model));
@@ -204,7 +248,7 @@ public class GetInfo {
         println("   RW Sessions     :" + info.ulRwSessionCount + " out of " + info.ulMaxRwSessionCount);
         println("   PIN Length      :" + info.ulMinPinLen + " to " + info.ulMaxPinLen);
         println("   Public Memory   :" + info.ulFreePublicMemory + " free, " + info.ulTotalPublicMemory + " total");
-        println("   Private Memory  :" + info.ulFreePublicMemory + " free, " + info.ulTotalPublicMemory + " total");
+        println("   Private Memory  :" + info.ulFreePrivateMemory + " free, " + info.ulTotalPrivateMemory + " total");
 
         if ((info.flags & CKF_TOKEN_INITIALIZED) > 0) {
             flagString += "TokenInitialised ";
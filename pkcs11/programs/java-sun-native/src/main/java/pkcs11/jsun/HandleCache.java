@@ -0,0 +1,209 @@
+package pkcs11.jsun;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongConsumer;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Bounded LRU cache of object handles, keyed on the search template that
+ * located them.
+ * <p>
+ * Two templates holding the same attributes in a different order share the
+ * same entry. Handles are only meaningful on one token: use one cache per
+ * token. Entries are dropped when their object is deleted through
+ * {@link ManageObjects#delete(sun.security.pkcs11.wrapper.PKCS11, long, long, HandleCache)},
+ * and operations run through
+ * {@link ManageObjects#withHandles(sun.security.pkcs11.wrapper.PKCS11, long, HandleCache, Operation, CK_ATTRIBUTE[][])}
+ * search again when the token reports a cached handle stale.
+ */
+public class HandleCache {
+
+    /**
+     * Default number of templates kept in the cache.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /* Cryptoki return values raised when a cached handle no longer exists */
+    static final long CKR_OBJECT_HANDLE_INVALID = 0x00000082L;
+    static final long CKR_KEY_HANDLE_INVALID = 0x00000060L;
+    static final long CKR_WRAPPING_KEY_HANDLE_INVALID = 0x00000113L;
+    static final long CKR_UNWRAPPING_KEY_HANDLE_INVALID = 0x000000F0L;
+
+    private final Map<String, Long> entries;
+    private final List<LongConsumer> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * A token operation on cached handles, retried once with fresh handles if
+     * one of them is stale.
+     *
+     * @param <T> The result of the operation.
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+
+        /**
+         * @param handles The handles of the objects, in the order of the templates.
+         * @return The result of the operation.
+         * @throws PKCS11Exception If the operation fails.
+         */
+        T run(long[] handles) throws PKCS11Exception;
+    }
+
+    /**
+     * Creates a cache holding at most {@link #DEFAULT_CAPACITY} templates.
+     */
+    public HandleCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum number of templates kept in the cache.
+     */
+    public HandleCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param template The search template.
+     * @return The cached handle, or null if the template is not cached.
+     */
+    public synchronized Long get(CK_ATTRIBUTE[] template) {
+        return entries.get(key(template));
+    }
+
+    /**
+     * @param template The search template.
+     * @param handle The handle of the object the template located.
+     */
+    public synchronized void put(CK_ATTRIBUTE[] template, long handle) {
+        entries.put(key(template), handle);
+    }
+
+    /**
+     * Registers a listener told of every handle invalidated, so that other
+     * caches keyed on handles can drop it too.
+     *
+     * @param listener Called with the handle, outside of the cache lock.
+     */
+    public void addInvalidationListener(LongConsumer listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Drops the entry of a template, e.g. after its handle was found stale.
+     *
+     * @param template The search template.
+     */
+    public void invalidate(CK_ATTRIBUTE[] template) {
+        Long handle;
+        synchronized (this) {
+            handle = entries.remove(key(template));
+        }
+        if (handle != null) {
+            notifyListeners(handle);
+        }
+    }
+
+    /**
+     * Drops every entry pointing to an object, e.g. once it was destroyed.
+     *
+     * @param handle The handle of the object.
+     */
+    public void invalidate(long handle) {
+        synchronized (this) {
+            Iterator<Long> it = entries.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() == handle) {
+                    it.remove();
+                }
+            }
+        }
+        notifyListeners(handle);
+    }
+
+    /**
+     * Drops every entry.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return The number of cached templates.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void notifyListeners(long handle) {
+        for (LongConsumer listener : listeners) {
+            listener.accept(handle);
+        }
+    }
+
+    /**
+     * Tells whether an exception means a handle given to the token does not
+     * exist anymore.
+     *
+     * @param ex The exception raised by a Cryptoki call.
+     * @return true if a cached handle is stale.
+     */
+    public static boolean isStaleHandle(PKCS11Exception ex) {
+        long rv = ex.getErrorCode();
+        return rv == CKR_OBJECT_HANDLE_INVALID
+                || rv == CKR_KEY_HANDLE_INVALID
+                || rv == CKR_WRAPPING_KEY_HANDLE_INVALID
+                || rv == CKR_UNWRAPPING_KEY_HANDLE_INVALID;
+    }
+
+    /**
+     * Builds the normalized form of a template: attributes sorted by type,
+     * each value rendered in a canonical text form.
+     *
+     * @param template The search template.
+     * @return The cache key of the template.
+     */
+    static String key(CK_ATTRIBUTE[] template) {
+        CK_ATTRIBUTE[] sorted = template.clone();
+        Arrays.sort(sorted, Comparator.comparingLong(attr -> attr.type));
+
+        StringBuilder key = new StringBuilder();
+        for (CK_ATTRIBUTE attr : sorted) {
+            key.append(Long.toHexString(attr.type)).append('=');
+            Object value = attr.pValue;
+            if (value == null) {
+                key.append('-');
+            } else if (value instanceof byte[]) {
+                for (byte b : (byte[]) value) {
+                    key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+            } else if (value instanceof char[]) {
+                key.append('"').append((char[]) value).append('"');
+            } else if (value instanceof BigInteger) {
+                key.append(((BigInteger) value).toString(16));
+            } else {
+                /* Boolean, Long and the date/version structures */
+                key.append(value);
+            }
+            key.append(';');
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,834 @@
+package pkcs11.jsun;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Exports keys wrapped under a token key to an archive, and restores them.
+ * <p>
+ * The keys to export are searched once, a page of <code>C_FindObjects</code>
+ * at a time, then cut into chunks wrapped in parallel, one chunk per session
+ * of the pool at a time. Each key is written with its attributes (class, key
+ * type, label, ID, storage and usage flags) in the order the token returned
+ * them, at most a few chunks per session being kept in memory waiting to be
+ * written. Restoring reads the archive back the same way and unwraps the
+ * chunks in parallel.
+ * <p>
+ * Archive layout:
+ * <pre>
+ * "P11K" | version (1) | wrapping mechanism (8)
+ * { 1 | attribute count (2) | { type (8) | kind (1) | value } | wrapped length (4) | wrapped key } ...
+ * 0 | key count (8) | SHA-256 of everything before it (32) | MAC length (2) | MAC
+ * </pre>
+ * The MAC is a <code>CKM_SHA256_HMAC</code> of the SHA-256, computed on the
+ * token with a secret key that never leaves it. The attributes are not
+ * covered by the wrapping, so a restore first copies the archive to a
+ * private temporary file, checks the MAC of the copy, and only then unwraps
+ * the keys of that same copy. Whatever the archive says,
+ * restored keys are sensitive, private and not extractable.
+ * <p>
+ * A restore that fails, including on a bad checksum, destroys the keys it
+ * already created.
+ * <p>
+ * Usage : java ...KeyArchive (-export, -restore) &lt;file&gt; -wrappingKey &lt;label&gt; -macKey &lt;label&gt;
+ * <li>-export write every extractable token key to &lt;file&gt;
+ * <li>-restore create the keys of &lt;file&gt; on the token
+ * <li>-verify check the checksum of &lt;file&gt;, or its MAC with -macKey
+ * <li>-wrappingKey label of the AES key the keys are wrapped with
+ * <li>-macKey label of the secret key authenticating the archive
+ */
+public class KeyArchive {
+
+    /**
+     * Default number of keys wrapped or unwrapped on a session per lease.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    /**
+     * Version of the archive layout.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Mechanism authenticating the archives.
+     */
+    public static final long MAC_MECHANISM = PKCS11Constants.CKM_SHA256_HMAC;
+
+    private static final byte[] MAGIC = {'P', '1', '1', 'K'};
+
+    /* tags starting each record */
+    private static final int TAG_END = 0;
+    private static final int TAG_KEY = 1;
+
+    /* kinds of attribute values */
+    private static final int KIND_BOOLEAN = 0;
+    private static final int KIND_LONG = 1;
+    private static final int KIND_BYTES = 2;
+    private static final int KIND_CHARS = 3;
+
+    /* sanity limits, so that a corrupted archive fails instead of allocating gigabytes */
+    private static final int MAX_ATTRIBUTES = 256;
+    private static final int MAX_VALUE_LENGTH = 64 * 1024;
+
+    private static final int DIGEST_LENGTH = 32;
+    private static final int MAX_MAC_LENGTH = 1024;
+
+    /* Cryptoki return value for an attribute the object does not have */
+    private static final long CKR_ATTRIBUTE_TYPE_INVALID = 0x00000012L;
+
+    /* chunks in flight per session of the pool */
+    private static final int CHUNKS_PER_SESSION = 2;
+
+    private static final int PAGE_SIZE = 256;
+
+    /* attributes of every key, then of the keys of each class */
+    private static final long[] COMMON_ATTRIBUTES = {
+        PKCS11Constants.CKA_CLASS, PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKA_TOKEN,
+        PKCS11Constants.CKA_PRIVATE, PKCS11Constants.CKA_LABEL, PKCS11Constants.CKA_ID
+    };
+    private static final long[] SECRET_KEY_ATTRIBUTES = {
+        PKCS11Constants.CKA_ENCRYPT, PKCS11Constants.CKA_DECRYPT, PKCS11Constants.CKA_SIGN,
+        PKCS11Constants.CKA_VERIFY, PKCS11Constants.CKA_WRAP, PKCS11Constants.CKA_UNWRAP,
+        PKCS11Constants.CKA_DERIVE, PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.CKA_EXTRACTABLE
+    };
+    private static final long[] PRIVATE_KEY_ATTRIBUTES = {
+        PKCS11Constants.CKA_DECRYPT, PKCS11Constants.CKA_SIGN, PKCS11Constants.CKA_UNWRAP,
+        PKCS11Constants.CKA_DERIVE, PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.CKA_EXTRACTABLE
+    };
+
+    /* attributes never taken from the archive: restored keys get these values */
+    private static final CK_ATTRIBUTE[] RESTORED_ATTRIBUTES = {
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_PRIVATE, true),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, true),
+        new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, false)
+    };
+
+    /**
+     * Exports keys, locating the wrapping and MAC keys once by templates.
+     *
+     * @see #export(SessionPool, CK_MECHANISM, long, long, CK_ATTRIBUTE[], OutputStream)
+     * @throws Exception If a key cannot be found, or the export fails.
+     */
+    public static long export(SessionPool pool, CK_MECHANISM wrapMech, CK_ATTRIBUTE[] wrappingKey,
+            CK_ATTRIBUTE[] macKey, CK_ATTRIBUTE[] template, OutputStream out) throws Exception {
+        long hWrappingKey;
+        long hMacKey;
+        try (SessionPool.Lease lease = pool.lease()) {
+            hWrappingKey = ManageObjects.find(pool.getP11(), lease.handle(), wrappingKey);
+            hMacKey = ManageObjects.find(pool.getP11(), lease.handle(), macKey);
+        }
+        return export(pool, wrapMech, hWrappingKey, hMacKey, template, out);
+    }
+
+    /**
+     * Wraps every key matching a template and writes them to an archive.
+     *
+     * @param pool Sessions the keys are wrapped on.
+     * @param wrapMech The mechanism used for wrapping (e.g., AES key wrap with padding).
+     * @param hWrappingKey The handle of the wrapping key, skipped if it matches the template.
+     * @param hMacKey The handle of the secret key authenticating the archive,
+     * skipped if it matches the template.
+     * @param template Cryptoki template of the keys to export; every key
+     * matching it must be extractable.
+     * @param out Where the archive is written; not closed.
+     * @return The number of keys written.
+     * @throws PKCS11Exception If a key cannot be read or wrapped; the archive
+     * is then left without its trailer.
+     * @throws IOException If the output cannot be written.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public static long export(SessionPool pool, CK_MECHANISM wrapMech, long hWrappingKey, long hMacKey,
+            CK_ATTRIBUTE[] template, OutputStream out) throws PKCS11Exception, IOException, InterruptedException {
+        long[] handles;
+        try (SessionPool.Lease lease = pool.lease()) {
+            try {
+                handles = ManageObjects.findAll(pool.getP11(), lease.handle(), template, PAGE_SIZE);
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                throw ex;
+            }
+        }
+        long[] keys = Arrays.stream(handles).filter(h -> h != hWrappingKey && h != hMacKey).toArray();
+
+        MessageDigest sha = sha256();
+        BufferedOutputStream buffered = new BufferedOutputStream(out);
+        DataOutputStream data = new DataOutputStream(new DigestOutputStream(buffered, sha));
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeLong(wrapMech.mechanism);
+
+        ExecutorService executor = Executors.newFixedThreadPool(pool.getSize());
+        Deque<Future<List<Record>>> pending = new ArrayDeque<>();
+        int maxPending = pool.getSize() * CHUNKS_PER_SESSION;
+        long written = 0;
+
+        try {
+            for (int from = 0; from < keys.length; from += DEFAULT_CHUNK_SIZE) {
+                int start = from;
+                int end = Math.min(from + DEFAULT_CHUNK_SIZE, keys.length);
+                pending.add(executor.submit(() -> wrapChunk(pool, wrapMech, hWrappingKey, keys, start, end)));
+
+                /* write the oldest chunk before getting too far ahead */
+                if (pending.size() >= maxPending) {
+                    written += write(await(pending.poll()), data);
+                }
+            }
+            while (!pending.isEmpty()) {
+                written += write(await(pending.poll()), data);
+            }
+
+            data.writeByte(TAG_END);
+            data.writeLong(written);
+            data.flush();
+            byte[] checksum = sha.digest();
+            byte[] mac = mac(pool, hMacKey, checksum);
+            DataOutputStream trailer = new DataOutputStream(buffered);
+            trailer.write(checksum);
+            trailer.writeShort(mac.length);
+            trailer.write(mac);
+            trailer.flush();
+        } finally {
+            for (Future<List<Record>> future : pending) {
+                future.cancel(false);
+            }
+            executor.shutdown();
+        }
+        return written;
+    }
+
+    /**
+     * Restores keys, locating the unwrapping and MAC keys once by templates.
+     *
+     * @see #restore(SessionPool, CK_MECHANISM, long, long, Path)
+     * @throws Exception If a key cannot be found, or the restore fails.
+     */
+    public static long restore(SessionPool pool, CK_MECHANISM unwrapMech, CK_ATTRIBUTE[] unwrappingKey,
+            CK_ATTRIBUTE[] macKey, Path archive) throws Exception {
+        long hUnwrappingKey;
+        long hMacKey;
+        try (SessionPool.Lease lease = pool.lease()) {
+            hUnwrappingKey = ManageObjects.find(pool.getP11(), lease.handle(), unwrappingKey);
+            hMacKey = ManageObjects.find(pool.getP11(), lease.handle(), macKey);
+        }
+        return restore(pool, unwrapMech, hUnwrappingKey, hMacKey, archive);
+    }
+
+    /**
+     * Authenticates an archive, then unwraps its keys with the label, ID and
+     * usage flags they were exported with. Restored keys are always
+     * sensitive, private and not extractable.
+     *
+     * @param pool Sessions the keys are unwrapped on.
+     * @param unwrapMech The mechanism used for unwrapping; must be the one of
+     * the archive.
+     * @param hUnwrappingKey The handle of the unwrapping key.
+     * @param hMacKey The handle of the secret key the archive was authenticated with.
+     * @param archive The archive; it is copied to a temporary file only the
+     * current user can access, and the copy is read twice: once to check its
+     * MAC, once to unwrap the keys.
+     * @return The number of keys restored.
+     * @throws PKCS11Exception If a key cannot be unwrapped; no key is left on the token.
+     * @throws IOException If the archive cannot be read, is not authentic, is
+     * corrupted or was wrapped with another mechanism; no key is left on the token.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public static long restore(SessionPool pool, CK_MECHANISM unwrapMech, long hUnwrappingKey, long hMacKey,
+            Path archive) throws PKCS11Exception, IOException, InterruptedException {
+        Path copy = privateCopy(archive);
+        try {
+            try (InputStream in = Files.newInputStream(copy)) {
+                ArchiveReader reader = new ArchiveReader(in);
+                while (reader.next() != null) {
+                    /* nothing is unwrapped before the whole archive is authenticated */
+                }
+                authenticate(pool, hMacKey, reader);
+            }
+            return unwrapAll(pool, unwrapMech, hUnwrappingKey, copy);
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
+    /*
+     * Copy an archive where nobody else can change it between the check of
+     * its MAC and the unwrapping of its keys. On POSIX file systems temporary
+     * files are created readable and writable by their owner only.
+     */
+    private static Path privateCopy(Path archive) throws IOException {
+        Path copy = Files.createTempFile("p11k", ".tmp");
+        try {
+            Files.copy(archive, copy, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(copy);
+            throw ex;
+        }
+        return copy;
+    }
+
+    /* unwrap the keys of an authenticated archive in parallel, destroying them all on failure */
+    private static long unwrapAll(SessionPool pool, CK_MECHANISM unwrapMech, long hUnwrappingKey, Path archive)
+            throws PKCS11Exception, IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(pool.getSize());
+        Deque<Future<long[]>> pending = new ArrayDeque<>();
+        int maxPending = pool.getSize() * CHUNKS_PER_SESSION;
+        List<long[]> restored = new ArrayList<>();
+        long count = 0;
+
+        try (InputStream in = Files.newInputStream(archive)) {
+            ArchiveReader reader = new ArchiveReader(in);
+            if (reader.mechanism != unwrapMech.mechanism) {
+                throw new IOException("Archive wrapped with mechanism 0x" + Long.toHexString(reader.mechanism));
+            }
+
+            List<Record> chunk = new ArrayList<>();
+            Record record;
+            while ((record = reader.next()) != null) {
+                chunk.add(record);
+                if (chunk.size() == DEFAULT_CHUNK_SIZE) {
+                    List<Record> records = chunk;
+                    pending.add(executor.submit(() -> unwrapChunk(pool, unwrapMech, hUnwrappingKey, records)));
+                    chunk = new ArrayList<>();
+                }
+
+                if (pending.size() >= maxPending) {
+                    restored.add(await(pending.poll()));
+                }
+            }
+            if (!chunk.isEmpty()) {
+                List<Record> records = chunk;
+                pending.add(executor.submit(() -> unwrapChunk(pool, unwrapMech, hUnwrappingKey, records)));
+            }
+            while (!pending.isEmpty()) {
+                restored.add(await(pending.poll()));
+            }
+        } catch (PKCS11Exception | IOException | InterruptedException | RuntimeException ex) {
+            /* let the chunks in flight finish, then destroy every key restored */
+            while (!pending.isEmpty()) {
+                try {
+                    restored.add(await(pending.poll()));
+                } catch (PKCS11Exception | InterruptedException | RuntimeException ignored) {
+                    /* the chunk destroyed its own keys */
+                }
+            }
+            destroy(pool, restored);
+            throw ex;
+        } finally {
+            executor.shutdown();
+        }
+
+        for (long[] handles : restored) {
+            count += handles.length;
+        }
+        return count;
+    }
+
+    /**
+     * Reads an archive through and checks its MAC on the token.
+     *
+     * @param pool Sessions the MAC is checked on.
+     * @param hMacKey The handle of the secret key the archive was authenticated with.
+     * @param in The archive; not closed.
+     * @return The number of keys in the archive.
+     * @throws PKCS11Exception If the MAC cannot be checked.
+     * @throws IOException If the archive cannot be read, is corrupted or is not authentic.
+     * @throws InterruptedException If the thread is interrupted while waiting for a session.
+     */
+    public static long authenticate(SessionPool pool, long hMacKey, InputStream in)
+            throws PKCS11Exception, IOException, InterruptedException {
+        ArchiveReader reader = new ArchiveReader(in);
+        while (reader.next() != null) {
+            /* records are only digested */
+        }
+        authenticate(pool, hMacKey, reader);
+        return reader.count;
+    }
+
+    /**
+     * Reads an archive through and checks its checksum, without touching the
+     * token. This only detects accidental corruption: anyone can recompute
+     * the checksum of a modified archive, see
+     * {@link #authenticate(SessionPool, long, InputStream)}.
+     *
+     * @param in The archive; not closed.
+     * @return The number of keys in the archive.
+     * @throws IOException If the archive cannot be read or is corrupted.
+     */
+    public static long verify(InputStream in) throws IOException {
+        ArchiveReader reader = new ArchiveReader(in);
+        long count = 0;
+        while (reader.next() != null) {
+            ++count;
+        }
+        return count;
+    }
+
+    private static byte[] mac(SessionPool pool, long hMacKey, byte[] checksum)
+            throws PKCS11Exception, InterruptedException {
+        try (SessionPool.Lease lease = pool.lease()) {
+            try {
+                Cryptoki.C_SignInit(pool.getP11(), lease.handle(), new CK_MECHANISM(MAC_MECHANISM), hMacKey);
+                return Cryptoki.C_Sign(pool.getP11(), lease.handle(), checksum);
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                throw ex;
+            }
+        }
+    }
+
+    /* check the MAC of an archive read through */
+    private static void authenticate(SessionPool pool, long hMacKey, ArchiveReader reader)
+            throws PKCS11Exception, IOException, InterruptedException {
+        try (SessionPool.Lease lease = pool.lease()) {
+            try {
+                Cryptoki.C_VerifyInit(pool.getP11(), lease.handle(), new CK_MECHANISM(MAC_MECHANISM), hMacKey);
+                Cryptoki.C_Verify(pool.getP11(), lease.handle(), reader.checksum, reader.mac);
+            } catch (PKCS11Exception ex) {
+                if (ex.getErrorCode() == PKCS11Exception.CKR_SIGNATURE_INVALID
+                        || ex.getErrorCode() == PKCS11Exception.CKR_SIGNATURE_LEN_RANGE) {
+                    throw new IOException("Archive not authentic: MAC mismatch");
+                }
+                lease.check(ex);
+                throw ex;
+            }
+        }
+    }
+
+    /* the archived attributes, less those a restore always sets itself */
+    private static CK_ATTRIBUTE[] restoreTemplate(CK_ATTRIBUTE[] archived) {
+        List<CK_ATTRIBUTE> template = new ArrayList<>(archived.length + RESTORED_ATTRIBUTES.length);
+        for (CK_ATTRIBUTE attribute : archived) {
+            if (attribute.type != PKCS11Constants.CKA_PRIVATE && attribute.type != PKCS11Constants.CKA_SENSITIVE
+                    && attribute.type != PKCS11Constants.CKA_EXTRACTABLE) {
+                template.add(attribute);
+            }
+        }
+        template.addAll(Arrays.asList(RESTORED_ATTRIBUTES));
+        return template.toArray(new CK_ATTRIBUTE[0]);
+    }
+
+    private static List<Record> wrapChunk(SessionPool pool, CK_MECHANISM wrapMech, long hWrappingKey,
+            long[] keys, int start, int end) throws PKCS11Exception, InterruptedException {
+        PKCS11 p11 = pool.getP11();
+        List<Record> records = new ArrayList<>(end - start);
+
+        try (SessionPool.Lease lease = pool.lease()) {
+            long hSession = lease.handle();
+            try {
+                for (int i = start; i < end; ++i) {
+                    CK_ATTRIBUTE[] attributes = readAttributes(p11, hSession, keys[i]);
+                    byte[] wrapped = ManageObjects.wrapKey(p11, hSession, wrapMech, hWrappingKey, keys[i]);
+                    records.add(new Record(attributes, wrapped));
+                }
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                throw ex;
+            }
+        }
+        return records;
+    }
+
+    private static long[] unwrapChunk(SessionPool pool, CK_MECHANISM unwrapMech, long hUnwrappingKey,
+            List<Record> records) throws PKCS11Exception, InterruptedException {
+        PKCS11 p11 = pool.getP11();
+        long[] handles = new long[records.size()];
+        int created = 0;
+
+        try (SessionPool.Lease lease = pool.lease()) {
+            long hSession = lease.handle();
+            try {
+                for (Record record : records) {
+                    handles[created] = ManageObjects.unwrapKey(p11, hSession, unwrapMech, hUnwrappingKey,
+                            record.wrapped, restoreTemplate(record.attributes));
+                    ++created;
+                }
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                /* a failed chunk cleans up after itself */
+                for (int i = 0; i < created; ++i) {
+                    try {
+                        ManageObjects.delete(p11, hSession, handles[i]);
+                    } catch (PKCS11Exception ignored) {
+                        /* already gone */
+                    }
+                }
+                throw ex;
+            }
+        }
+        return handles;
+    }
+
+    /* class and key type first, then the attributes of that class of key */
+    private static CK_ATTRIBUTE[] readAttributes(PKCS11 p11, long hSession, long hKey) throws PKCS11Exception {
+        List<CK_ATTRIBUTE> attributes = readAttributes(p11, hSession, hKey, COMMON_ATTRIBUTES);
+        long objectClass = attributes.get(0).getLong();
+        attributes.addAll(readAttributes(p11, hSession, hKey,
+                objectClass == PKCS11Constants.CKO_SECRET_KEY ? SECRET_KEY_ATTRIBUTES : PRIVATE_KEY_ATTRIBUTES));
+        return attributes.toArray(new CK_ATTRIBUTE[0]);
+    }
+
+    /* read the attributes in one call, or one by one if the key lacks some of them */
+    private static List<CK_ATTRIBUTE> readAttributes(PKCS11 p11, long hSession, long hKey, long[] types) throws PKCS11Exception {
+        CK_ATTRIBUTE[] attributes = new CK_ATTRIBUTE[types.length];
+        for (int i = 0; i < types.length; ++i) {
+            attributes[i] = new CK_ATTRIBUTE(types[i]);
+        }
+
+        try {
+            Cryptoki.C_GetAttributeValue(p11, hSession, hKey, attributes);
+        } catch (PKCS11Exception ex) {
+            if (ex.getErrorCode() != CKR_ATTRIBUTE_TYPE_INVALID) {
+                throw ex;
+            }
+            for (int i = 0; i < types.length; ++i) {
+                attributes[i] = new CK_ATTRIBUTE(types[i]);
+                try {
+                    Cryptoki.C_GetAttributeValue(p11, hSession, hKey, new CK_ATTRIBUTE[]{attributes[i]});
+                } catch (PKCS11Exception single) {
+                    if (single.getErrorCode() != CKR_ATTRIBUTE_TYPE_INVALID) {
+                        throw single;
+                    }
+                }
+            }
+        }
+
+        List<CK_ATTRIBUTE> read = new ArrayList<>();
+        for (CK_ATTRIBUTE attribute : attributes) {
+            if (attribute.pValue != null) {
+                read.add(attribute);
+            }
+        }
+        return read;
+    }
+
+    private static long write(List<Record> records, DataOutputStream data) throws IOException {
+        for (Record record : records) {
+            data.writeByte(TAG_KEY);
+            data.writeShort(record.attributes.length);
+            for (CK_ATTRIBUTE attribute : record.attributes) {
+                writeAttribute(attribute, data);
+            }
+            data.writeInt(record.wrapped.length);
+            data.write(record.wrapped);
+        }
+        return records.size();
+    }
+
+    private static void writeAttribute(CK_ATTRIBUTE attribute, DataOutputStream data) throws IOException {
+        Object value = attribute.pValue;
+        data.writeLong(attribute.type);
+        if (value instanceof Boolean) {
+            data.writeByte(KIND_BOOLEAN);
+            data.writeBoolean((Boolean) value);
+        } else if (value instanceof Long) {
+            data.writeByte(KIND_LONG);
+            data.writeLong((Long) value);
+        } else if (value instanceof byte[]) {
+            data.writeByte(KIND_BYTES);
+            data.writeInt(((byte[]) value).length);
+            data.write((byte[]) value);
+        } else if (value instanceof char[]) {
+            byte[] utf8 = new String((char[]) value).getBytes(StandardCharsets.UTF_8);
+            data.writeByte(KIND_CHARS);
+            data.writeInt(utf8.length);
+            data.write(utf8);
+        } else {
+            throw new IOException("Unsupported value for attribute 0x" + Long.toHexString(attribute.type));
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws PKCS11Exception, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof PKCS11Exception) {
+                throw (PKCS11Exception) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static void destroy(SessionPool pool, List<long[]> restored) throws InterruptedException {
+        try (SessionPool.Lease lease = pool.lease()) {
+            for (long[] handles : restored) {
+                for (long handle : handles) {
+                    try {
+                        ManageObjects.delete(pool.getP11(), lease.handle(), handle);
+                    } catch (PKCS11Exception ex) {
+                        /* already gone */
+                    }
+                }
+            }
+        } catch (PKCS11Exception ex) {
+            /* no session left to clean up with */
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            /* every JRE provides SHA-256 */
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /* one wrapped key and the attributes to restore it with */
+    private static final class Record {
+
+        private final CK_ATTRIBUTE[] attributes;
+        private final byte[] wrapped;
+
+        Record(CK_ATTRIBUTE[] attributes, byte[] wrapped) {
+            this.attributes = attributes;
+            this.wrapped = wrapped;
+        }
+    }
+
+    /* reads the records of an archive, checking the trailer after the last one */
+    private static final class ArchiveReader {
+
+        private final MessageDigest sha = sha256();
+        private final DigestInputStream digest;
+        private final DataInputStream data;
+        private final long mechanism;
+        private long count = 0;
+        private boolean end = false;
+        private byte[] checksum;
+        private byte[] mac;
+
+        ArchiveReader(InputStream in) throws IOException {
+            digest = new DigestInputStream(new BufferedInputStream(in), sha);
+            data = new DataInputStream(digest);
+
+            byte[] magic = new byte[MAGIC.length];
+            data.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a key archive");
+            }
+            int version = data.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported archive version: " + version);
+            }
+            mechanism = data.readLong();
+        }
+
+        /* the next record, or null once the trailer was read and checked */
+        Record next() throws IOException {
+            if (end) {
+                return null;
+            }
+            int tag = data.readUnsignedByte();
+            if (tag == TAG_END) {
+                readTrailer();
+                return null;
+            }
+            if (tag != TAG_KEY) {
+                throw new IOException("Corrupted archive: unknown record 0x" + Integer.toHexString(tag));
+            }
+
+            int attributeCount = data.readUnsignedShort();
+            if (attributeCount > MAX_ATTRIBUTES) {
+                throw new IOException("Corrupted archive: " + attributeCount + " attributes");
+            }
+            CK_ATTRIBUTE[] attributes = new CK_ATTRIBUTE[attributeCount];
+            for (int i = 0; i < attributeCount; ++i) {
+                attributes[i] = readAttribute();
+            }
+            byte[] wrapped = readBytes();
+            ++count;
+            return new Record(attributes, wrapped);
+        }
+
+        private CK_ATTRIBUTE readAttribute() throws IOException {
+            long type = data.readLong();
+            int kind = data.readUnsignedByte();
+            switch (kind) {
+                case KIND_BOOLEAN:
+                    return new CK_ATTRIBUTE(type, data.readBoolean());
+                case KIND_LONG:
+                    return new CK_ATTRIBUTE(type, data.readLong());
+                case KIND_BYTES:
+                    return new CK_ATTRIBUTE(type, readBytes());
+                case KIND_CHARS:
+                    return new CK_ATTRIBUTE(type, new String(readBytes(), StandardCharsets.UTF_8).toCharArray());
+                default:
+                    throw new IOException("Corrupted archive: unknown value kind " + kind);
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = data.readInt();
+            if (length < 0 || length > MAX_VALUE_LENGTH) {
+                throw new IOException("Corrupted archive: value of " + length + " bytes");
+            }
+            byte[] value = new byte[length];
+            data.readFully(value);
+            return value;
+        }
+
+        private void readTrailer() throws IOException {
+            long expected = data.readLong();
+            byte[] computed = sha.digest();
+
+            digest.on(false);
+            checksum = new byte[DIGEST_LENGTH];
+            data.readFully(checksum);
+            int macLength = data.readUnsignedShort();
+            if (macLength > MAX_MAC_LENGTH) {
+                throw new IOException("Corrupted archive: MAC of " + macLength + " bytes");
+            }
+            mac = new byte[macLength];
+            data.readFully(mac);
+            end = true;
+
+            if (!MessageDigest.isEqual(computed, checksum)) {
+                throw new IOException("Corrupted archive: checksum mismatch");
+            }
+            if (expected != count) {
+                throw new IOException("Corrupted archive: " + count + " keys read, " + expected + " expected");
+            }
+        }
+    }
+
+    /**
+     * easy access to System.out.println
+     */
+    static public void println(String s) {
+        System.out.println(s);
+    }
+
+    /**
+     * display runtime usage of the class
+     */
+    public static void usage() {
+        println("java ...KeyArchive (-export, -restore) <file> -wrappingKey <label> -macKey <label>");
+        println("java ...KeyArchive -verify <file> [-macKey <label>]");
+        println("");
+        println("-export        write every extractable token key to <file>");
+        println("-restore       create the keys of <file> on the token");
+        println("-verify        check the checksum of <file>, or its MAC with -macKey");
+        println("-wrappingKey   label of the AES key the keys are wrapped with");
+        println("-macKey        label of the secret key authenticating the archive");
+        println("");
+
+        System.exit(1);
+    }
+
+    /**
+     * main execution method
+     */
+    public static void main(String[] args) throws Exception {
+        String command = null;
+        Path file = null;
+        String wrappingKeyLabel = null;
+        String macKeyLabel = null;
+
+        /*
+         * process command line arguments
+         */
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equalsIgnoreCase("-export") || args[i].equalsIgnoreCase("-restore")
+                    || args[i].equalsIgnoreCase("-verify")) {
+                if (command != null || ++i >= args.length) {
+                    usage();
+                }
+                command = args[i - 1].toLowerCase();
+                file = Path.of(args[i]);
+            } else if (args[i].equalsIgnoreCase("-wrappingKey")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+                wrappingKeyLabel = args[i];
+            } else if (args[i].equalsIgnoreCase("-macKey")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+                macKeyLabel = args[i];
+            } else {
+                usage();
+            }
+        }
+
+        if (command == null
+                || (!command.equals("-verify") && (wrappingKeyLabel == null || macKeyLabel == null))) {
+            usage();
+        }
+
+        if (command.equals("-verify") && macKeyLabel == null) {
+            try (InputStream in = Files.newInputStream(file)) {
+                println(verify(in) + " key(s), checksum valid");
+            }
+            return;
+        }
+
+        /* the library, slot, PIN and sessions are configured on the module */
+        SessionPool pool = Pkcs11Module.getInstance().pool();
+        CK_MECHANISM mechanism = new CK_MECHANISM(PKCS11Constants.CKM_AES_KEY_WRAP_PAD);
+        CK_ATTRIBUTE[] macKey = secretKey(macKeyLabel);
+
+        if (command.equals("-verify")) {
+            long hMacKey;
+            try (SessionPool.Lease lease = pool.lease()) {
+                hMacKey = ManageObjects.find(pool.getP11(), lease.handle(), macKey);
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                println(authenticate(pool, hMacKey, in) + " key(s), MAC valid");
+            }
+            return;
+        }
+
+        CK_ATTRIBUTE[] wrappingKey = secretKey(wrappingKeyLabel);
+
+        if (command.equals("-export")) {
+            CK_ATTRIBUTE[] template = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE)
+            };
+            try (OutputStream out = Files.newOutputStream(file)) {
+                println("Exported " + export(pool, mechanism, wrappingKey, macKey, template, out)
+                        + " key(s) to " + file);
+            }
+        } else {
+            println("Restored " + restore(pool, mechanism, wrappingKey, macKey, file) + " key(s) from " + file);
+        }
+    }
+
+    private static CK_ATTRIBUTE[] secretKey(String label) {
+        return new CK_ATTRIBUTE[]{
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.getBytes(StandardCharsets.UTF_8))
+        };
+    }
+}
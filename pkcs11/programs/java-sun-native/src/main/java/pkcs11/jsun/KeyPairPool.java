@@ -0,0 +1,247 @@
+package pkcs11.jsun;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Key pairs generated ahead of time, so that callers do not wait for
+ * <code>C_GenerateKeyPair</code>.
+ * <p>
+ * Each registered profile (a mechanism and a pair of templates) keeps up to a
+ * target number of pairs ready. Background workers generate pairs on the
+ * sessions of the pool until the target is reached, and again every time a
+ * pair is taken. When no pair is ready, {@link #take(String)} generates one on
+ * the calling thread.
+ * <p>
+ * All the pairs of a profile share its templates; callers set the attributes
+ * specific to each pair, e.g. CKA_LABEL or CKA_ID, with
+ * <code>C_SetAttributeValue</code> once they took it. Pairs still waiting when
+ * the pool is closed are destroyed.
+ * <p>
+ * Usage :
+ * <pre>
+ * KeyPairPool keyPairs = new KeyPairPool(pool, 2);
+ * keyPairs.register("p256", new CK_MECHANISM(CKM_EC_KEY_PAIR_GEN), publicTemplate, privateTemplate, 16);
+ * long[] pair = keyPairs.take("p256");
+ * </pre>
+ */
+public class KeyPairPool implements AutoCloseable {
+
+    /* delay before a failed generation is tried again, in milliseconds */
+    private static final long RETRY_DELAY = 1000;
+
+    private final SessionPool pool;
+    private final ScheduledExecutorService workers;
+    private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param pool Sessions the pairs are generated on.
+     * @param workers Number of pairs generated at the same time in the background.
+     */
+    public KeyPairPool(SessionPool pool, int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Worker count must be positive: " + workers);
+        }
+        this.pool = pool;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newScheduledThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "pkcs11-keypair-" + pool.getSlotId() + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a profile and starts filling it.
+     *
+     * @param name Name the pairs of the profile are taken by.
+     * @param keyGenMech The key generation mechanism (e.g., RSA, EC).
+     * @param publicTemplate Template for the public keys' attributes.
+     * @param privateTemplate Template for the private keys' attributes.
+     * @param depth Number of pairs to keep ready.
+     */
+    public void register(String name, CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate,
+            CK_ATTRIBUTE[] privateTemplate, int depth) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Depth must be positive: " + depth);
+        }
+        Profile profile = new Profile(keyGenMech, publicTemplate, privateTemplate, depth);
+        if (profiles.putIfAbsent(name, profile) != null) {
+            throw new IllegalArgumentException("Profile already registered: " + name);
+        }
+        refill(profile);
+    }
+
+    /**
+     * Takes a pair of a profile, generating it on the calling thread if none
+     * is ready.
+     *
+     * @param name Name of the profile.
+     * @return The handles of the pair: public key first, private key second.
+     * The caller owns the keys.
+     * @throws PKCS11Exception If no pair was ready and generating one failed.
+     * @throws InterruptedException If the thread is interrupted while waiting for a session.
+     */
+    public long[] take(String name) throws PKCS11Exception, InterruptedException {
+        Profile profile = profile(name);
+        long[] pair = profile.ready.poll();
+        refill(profile);
+        return pair != null ? pair : generate(profile);
+    }
+
+    /**
+     * Takes a pair of a profile only if one is ready.
+     *
+     * @param name Name of the profile.
+     * @return The handles of the pair, or null if none is ready.
+     */
+    public long[] poll(String name) {
+        Profile profile = profile(name);
+        long[] pair = profile.ready.poll();
+        if (pair != null) {
+            refill(profile);
+        }
+        return pair;
+    }
+
+    /**
+     * @param name Name of the profile.
+     * @return The number of pairs ready.
+     */
+    public int getReadyCount(String name) {
+        return profile(name).ready.size();
+    }
+
+    /**
+     * @param name Name of the profile.
+     * @return The error of the last background generation that failed, or null.
+     */
+    public Exception getLastError(String name) {
+        return profile(name).lastError;
+    }
+
+    /**
+     * Stops generating and destroys the pairs still ready. The session pool is
+     * left open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(RETRY_DELAY, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        try (SessionPool.Lease lease = pool.lease()) {
+            for (Profile profile : profiles.values()) {
+                long[] pair;
+                while ((pair = profile.ready.poll()) != null) {
+                    destroy(lease.handle(), pair);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (PKCS11Exception ex) {
+            /* no session left, session objects go with their session */
+        }
+    }
+
+    private Profile profile(String name) {
+        Profile profile = profiles.get(name);
+        if (profile == null) {
+            throw new IllegalArgumentException("Unknown profile: " + name);
+        }
+        return profile;
+    }
+
+    /* schedule enough generations to bring the profile back to its depth */
+    private void refill(Profile profile) {
+        while (!closed) {
+            int pending = profile.pending.get();
+            if (profile.ready.size() + pending >= profile.depth) {
+                return;
+            }
+            if (profile.pending.compareAndSet(pending, pending + 1)) {
+                schedule(profile, 0);
+            }
+        }
+    }
+
+    private void schedule(Profile profile, long delay) {
+        workers.schedule(() -> {
+            try {
+                long[] pair = generate(profile);
+                if (closed || !profile.ready.offer(pair)) {
+                    try (SessionPool.Lease lease = pool.lease()) {
+                        destroy(lease.handle(), pair);
+                    }
+                }
+                profile.lastError = null;
+                profile.pending.decrementAndGet();
+            } catch (InterruptedException ex) {
+                profile.pending.decrementAndGet();
+            } catch (Exception ex) {
+                /* keep the slot of the failed pair and try again later */
+                profile.lastError = ex;
+                if (!closed) {
+                    schedule(profile, RETRY_DELAY);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private long[] generate(Profile profile) throws PKCS11Exception, InterruptedException {
+        try (SessionPool.Lease lease = pool.lease()) {
+            try {
+                return ManageObjects.generateKeyPair(pool.getP11(), lease.handle(), profile.keyGenMech,
+                        profile.publicTemplate, profile.privateTemplate);
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                throw ex;
+            }
+        }
+    }
+
+    private void destroy(long hSession, long[] pair) {
+        for (long handle : pair) {
+            try {
+                Cryptoki.C_DestroyObject(pool.getP11(), hSession, handle);
+            } catch (PKCS11Exception ex) {
+                /* already gone */
+            }
+        }
+    }
+
+    /* templates and ready pairs of one profile */
+    private static final class Profile {
+
+        private final CK_MECHANISM keyGenMech;
+        private final CK_ATTRIBUTE[] publicTemplate;
+        private final CK_ATTRIBUTE[] privateTemplate;
+        private final int depth;
+        private final BlockingQueue<long[]> ready;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile Exception lastError;
+
+        Profile(CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate, CK_ATTRIBUTE[] privateTemplate, int depth) {
+            this.keyGenMech = keyGenMech;
+            this.publicTemplate = publicTemplate;
+            this.privateTemplate = privateTemplate;
+            this.depth = depth;
+            this.ready = new LinkedBlockingQueue<>(depth);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package pkcs11.jsun;
 
+import java.util.Arrays;
+
 import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
 import sun.security.pkcs11.wrapper.CK_MECHANISM;
 import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
 import sun.security.pkcs11.wrapper.PKCS11Exception;
 
 public class ManageObjects {
@@ -25,9 +28,9 @@ public class ManageObjects {
         long[] hKeys;
 
         // Initialize the object search using the provided template.
-        p11.C_FindObjectsInit(hSession, template);
-        hKeys = p11.C_FindObjects(hSession, 1);  // Only looking for one key.
-        p11.C_FindObjectsFinal(hSession);  // Finalize the search.
+        Cryptoki.C_FindObjectsInit(p11, hSession, template);
+        hKeys = Cryptoki.C_FindObjects(p11, hSession, 1);  // Only looking for one key.
+        Cryptoki.C_FindObjectsFinal(p11, hSession);  // Finalize the search.
 
         // Return the first key found, or throw an exception if no key is found.
         if (hKeys.length >= 1) {
@@ -37,6 +40,101 @@ public class ManageObjects {
         }
     }
 
+    /**
+     * Searches for a key on a token matching the provided template, going
+     * through a handle cache.
+     *
+     * The token is only searched when the template is not cached yet. The handle
+     * found is then cached for the next calls. A cached handle is returned
+     * without calling the token: operations that may meet a stale handle
+     * should go through {@link #withHandles}, which searches again.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param template Cryptoki template with the desired key attributes (e.g., key class, type, label).
+     * @param cache The handle cache of the token.
+     * @return The handle of the first key found that matches the provided template.
+     * @throws Exception If no key is found matching the template.
+     */
+    public static long find(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template, HandleCache cache) throws Exception {
+        return lookup(p11, hSession, cache, new CK_ATTRIBUTE[][]{template})[0];
+    }
+
+    /**
+     * Runs an operation on objects located through a handle cache.
+     *
+     * If the token reports that one of the cached handles is no longer valid,
+     * every template is dropped from the cache and the operation is retried
+     * once with freshly searched handles.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param cache The handle cache of the token.
+     * @param operation The operation, given the handles in the order of the templates.
+     * @param templates Cryptoki templates locating the objects of the operation.
+     * @return The result of the operation.
+     * @throws Exception If an object cannot be found, or the operation fails.
+     */
+    public static <T> T withHandles(PKCS11 p11, long hSession, HandleCache cache, HandleCache.Operation<T> operation,
+            CK_ATTRIBUTE[]... templates) throws Exception {
+        try {
+            return operation.run(lookup(p11, hSession, cache, templates));
+        } catch (PKCS11Exception ex) {
+            if (!HandleCache.isStaleHandle(ex)) {
+                throw ex;
+            }
+            for (CK_ATTRIBUTE[] template : templates) {
+                cache.invalidate(template);
+            }
+            return operation.run(lookup(p11, hSession, cache, templates));
+        }
+    }
+
+    /* the cached handles of the templates, searching the token for the missing ones */
+    private static long[] lookup(PKCS11 p11, long hSession, HandleCache cache, CK_ATTRIBUTE[][] templates) throws Exception {
+        long[] handles = new long[templates.length];
+        for (int i = 0; i < templates.length; ++i) {
+            Long hObject = cache.get(templates[i]);
+            if (hObject == null) {
+                hObject = find(p11, hSession, templates[i]);
+                cache.put(templates[i], hObject);
+            }
+            handles[i] = hObject;
+        }
+        return handles;
+    }
+
+    /**
+     * Searches for every object on a token matching the provided template.
+     *
+     * The handles are returned by pages of <code>C_FindObjects</code>, and the
+     * search is finalized before returning, so that the objects found can be
+     * used or destroyed on the same session.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param template Cryptoki template with the desired object attributes.
+     * @param pageSize Number of handles returned per <code>C_FindObjects</code> call.
+     * @return The handles of every object matching the template, possibly none.
+     * @throws PKCS11Exception If an error occurs during the search.
+     */
+    public static long[] findAll(PKCS11 p11, long hSession, CK_ATTRIBUTE[] template, int pageSize) throws PKCS11Exception {
+        long[] hObjects = new long[0];
+
+        Cryptoki.C_FindObjectsInit(p11, hSession, template);
+        try {
+            long[] page;
+            do {
+                page = Cryptoki.C_FindObjects(p11, hSession, pageSize);
+                hObjects = Arrays.copyOf(hObjects, hObjects.length + page.length);
+                System.arraycopy(page, 0, hObjects, hObjects.length - page.length, page.length);
+            } while (page.length == pageSize);
+        } finally {
+            Cryptoki.C_FindObjectsFinal(p11, hSession);
+        }
+        return hObjects;
+    }
+
     /**
      * Deletes a specified key from the token.
      *
@@ -48,7 +146,21 @@ public class ManageObjects {
      * @throws PKCS11Exception If an error occurs during the key destruction process.
      */
     public static void delete(PKCS11 p11, long hSession, long hKey) throws PKCS11Exception{
-        p11.C_DestroyObject(hSession, hKey);
+        Cryptoki.C_DestroyObject(p11, hSession, hKey);
+    }
+
+    /**
+     * Deletes a specified key from the token and drops it from a handle cache.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param hKey The handle of the key to be destroyed.
+     * @param cache The handle cache of the token.
+     * @throws PKCS11Exception If an error occurs during the key destruction process.
+     */
+    public static void delete(PKCS11 p11, long hSession, long hKey, HandleCache cache) throws PKCS11Exception {
+        cache.invalidate(hKey);
+        delete(p11, hSession, hKey);
     }
 
     /**
@@ -66,7 +178,7 @@ public class ManageObjects {
      * @throws PKCS11Exception If an error occurs during the key derivation.
      */
     public static long deriveKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hBaseKey, CK_ATTRIBUTE[] newObjTpl) throws PKCS11Exception {
-        return p11.C_DeriveKey(hSession, mechanism, hBaseKey, newObjTpl);
+        return Cryptoki.C_DeriveKey(p11, hSession, mechanism, hBaseKey, newObjTpl);
     }
 
     /**
@@ -87,7 +199,63 @@ public class ManageObjects {
     public static byte[] wrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, CK_ATTRIBUTE[] wrappingKey, CK_ATTRIBUTE[] keyToWrap) throws Exception {
         long hWrappingKey = find(p11, hSession, wrappingKey);  // Locate the wrapping key.
         long hKeyToWrap = find(p11, hSession, keyToWrap);  // Locate the key to be wrapped.
-        return p11.C_WrapKey(hSession, mechanism, hWrappingKey, hKeyToWrap);
+        return Cryptoki.C_WrapKey(p11, hSession, mechanism, hWrappingKey, hKeyToWrap);
+    }
+
+    /**
+     * Wraps a key using another key, both given by handle.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param mechanism The mechanism used for wrapping (e.g., AES key wrap).
+     * @param hWrappingKey The handle of the wrapping key.
+     * @param hKeyToWrap The handle of the key to be wrapped.
+     * @return The wrapped key as a byte array.
+     * @throws PKCS11Exception If an error occurs during the key wrapping process.
+     */
+    public static byte[] wrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hWrappingKey, long hKeyToWrap) throws PKCS11Exception {
+        return Cryptoki.C_WrapKey(p11, hSession, mechanism, hWrappingKey, hKeyToWrap);
+    }
+
+    /**
+     * Unwraps a key with another key, creating a new key object.
+     *
+     * This method decrypts a wrapped key (e.g., one produced by {@link #wrapKey})
+     * inside the token. The new key's attributes are defined by the provided template.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param mechanism The mechanism used for unwrapping (e.g., AES key wrap).
+     * @param hUnwrappingKey The handle of the unwrapping key.
+     * @param wrappedKey The wrapped key.
+     * @param template The template for the unwrapped key's attributes.
+     * @return The handle of the unwrapped key.
+     * @throws PKCS11Exception If an error occurs during the key unwrapping process.
+     */
+    public static long unwrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, long hUnwrappingKey, byte[] wrappedKey, CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        return Cryptoki.C_UnwrapKey(p11, hSession, mechanism, hUnwrappingKey, wrappedKey, template);
+    }
+
+    /**
+     * Wraps a key using another key, both located through a handle cache.
+     *
+     * If the token reports that one of the cached handles is no longer valid,
+     * both templates are dropped from the cache and the wrap is retried once
+     * with freshly searched handles.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param mechanism The mechanism used for wrapping (e.g., AES ECB).
+     * @param wrappingKey Template containing attributes to identify the wrapping key.
+     * @param keyToWrap Template containing attributes to identify the key to be wrapped.
+     * @param cache The handle cache of the token.
+     * @return The wrapped key as a byte array.
+     * @throws Exception If an error occurs during the key wrapping process.
+     */
+    public static byte[] wrapKey(PKCS11 p11, long hSession, CK_MECHANISM mechanism, CK_ATTRIBUTE[] wrappingKey, CK_ATTRIBUTE[] keyToWrap, HandleCache cache) throws Exception {
+        return withHandles(p11, hSession, cache,
+                handles -> Cryptoki.C_WrapKey(p11, hSession, mechanism, handles[0], handles[1]),
+                wrappingKey, keyToWrap);
     }
 
     /**
@@ -101,20 +269,34 @@ public class ManageObjects {
      * @param keyGenMech The key generation mechanism to use (e.g., RSA, EC).
      * @param publicTemplate Template for the public key's attributes.
      * @param privateTemplate Template for the private key's attributes.
-     * @param hPublicKey Output parameter: Handle for the generated public key.
-     * @param hPrivateKey Output parameter: Handle for the generated private key.
+     * @return The handles of the generated keys: public key first, private key second.
      * @throws PKCS11Exception If an error occurs during key pair generation.
      */
-    public static void generateKeyPair(PKCS11 p11, long hSession, CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate, CK_ATTRIBUTE[] privateTemplate,
-            long hPublicKey,
-            long hPrivateKey) throws PKCS11Exception {
-
-        long[] keys = p11.C_GenerateKeyPair(hSession, keyGenMech,
+    public static long[] generateKeyPair(PKCS11 p11, long hSession, CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate, CK_ATTRIBUTE[] privateTemplate) throws PKCS11Exception {
+        return Cryptoki.C_GenerateKeyPair(p11, hSession, keyGenMech,
                 publicTemplate,
                 privateTemplate);
+    }
 
-        hPublicKey = keys[0];
-        hPrivateKey = keys[1];
+    /**
+     * Generates an asymmetric key pair.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param hSession Handle to the open PKCS#11 session associated with the token.
+     * @param keyGenMech The key generation mechanism to use (e.g., RSA, EC).
+     * @param publicTemplate Template for the public key's attributes.
+     * @param privateTemplate Template for the private key's attributes.
+     * @param hPublicKey Ignored: Java passes it by value, the handle is lost.
+     * @param hPrivateKey Ignored: Java passes it by value, the handle is lost.
+     * @throws PKCS11Exception If an error occurs during key pair generation.
+     * @deprecated The handles of the generated keys never reach the caller, use
+     * {@link #generateKeyPair(PKCS11, long, CK_MECHANISM, CK_ATTRIBUTE[], CK_ATTRIBUTE[])}.
+     */
+    @Deprecated
+    public static void generateKeyPair(PKCS11 p11, long hSession, CK_MECHANISM keyGenMech, CK_ATTRIBUTE[] publicTemplate, CK_ATTRIBUTE[] privateTemplate,
+            long hPublicKey,
+            long hPrivateKey) throws PKCS11Exception {
+        generateKeyPair(p11, hSession, keyGenMech, publicTemplate, privateTemplate);
     }
 
     /**
@@ -139,6 +321,35 @@ public class ManageObjects {
             boolean bPrivate) throws PKCS11Exception {
         CK_MECHANISM keyGenMech = new CK_MECHANISM(mechanismType);
 
-        return p11.C_GenerateKey(session, keyGenMech, template);
+        return Cryptoki.C_GenerateKey(p11, session, keyGenMech, template);
+    }
+
+    /**
+     * Generates a symmetric key, first checking that the token of the session
+     * supports the mechanism for key generation.
+     *
+     * @param p11 PKCS#11 wrapper instance used to interact with the token.
+     * @param session Handle to the open PKCS#11 session associated with the token.
+     * @param template Template for the key's attributes (e.g., label, usage, etc.).
+     * @param mechanismType The mechanism to use for generating the key (e.g., `CKM_AES_KEY_GEN`).
+     * @param keyName The name (label) to assign to the generated key.
+     * @param bPrivate If true, the key is generated as a private object.
+     * @param registry Mechanisms supported by the slots.
+     * @return The handle of the generated symmetric key.
+     * @throws PKCS11Exception CKR_MECHANISM_INVALID if the token does not
+     * support the mechanism, or if an error occurs during key generation.
+     */
+    public static long generateKey(PKCS11 p11, long session, CK_ATTRIBUTE[] template,
+            long mechanismType,
+            String keyName,
+            boolean bPrivate,
+            MechanismRegistry registry) throws PKCS11Exception {
+        /* sessions opened through Cryptoki know their slot */
+        long slotId = Cryptoki.slotOf(session);
+        if (slotId != Cryptoki.UNKNOWN_SLOT) {
+            registry.check(slotId, mechanismType, 0, PKCS11Constants.CKF_GENERATE);
+        }
+
+        return generateKey(p11, session, template, mechanismType, keyName, bPrivate);
     }
 }
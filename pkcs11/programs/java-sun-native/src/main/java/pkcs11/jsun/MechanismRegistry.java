@@ -0,0 +1,254 @@
+package pkcs11.jsun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import sun.security.pkcs11.wrapper.CK_INFO;
+import sun.security.pkcs11.wrapper.CK_MECHANISM_INFO;
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * The mechanisms supported by each slot, with their key sizes and flags.
+ * <p>
+ * Probing a token means one <code>C_GetMechanismInfo</code> per mechanism,
+ * hundreds of calls on an HSM. The registry saves what it probed to a cache
+ * file, keyed by library path, library version, token model, serial number and
+ * firmware version: the next start reuses the saved list as long as none of
+ * them changed.
+ * <p>
+ * Usage :
+ * <pre>
+ * MechanismRegistry registry = MechanismRegistry.load(p11, library, Path.of("mechanisms.properties"));
+ * if (registry.supports(slotId, CKM_AES_GCM, 32, CKF_ENCRYPT)) { ... }
+ * </pre>
+ */
+public class MechanismRegistry {
+
+    /* Cryptoki return value for a mechanism the token does not support */
+    static final long CKR_MECHANISM_INVALID = 0x00000070L;
+
+    /* marks that a token was probed, even if it has no mechanism */
+    private static final String PROBED = "probed";
+
+    private final Map<Long, Map<Long, CK_MECHANISM_INFO>> slots;
+
+    MechanismRegistry(Map<Long, Map<Long, CK_MECHANISM_INFO>> slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Probes every slot with a token, without any cache file.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @return The registry.
+     * @throws PKCS11Exception If a token cannot be probed.
+     */
+    public static MechanismRegistry probe(PKCS11 p11) throws PKCS11Exception {
+        Map<Long, Map<Long, CK_MECHANISM_INFO>> slots = new TreeMap<>();
+        for (long slotId : Cryptoki.C_GetSlotList(p11, true)) {
+            slots.put(slotId, probe(p11, slotId));
+        }
+        return new MechanismRegistry(slots);
+    }
+
+    /**
+     * Reads the mechanisms of every slot with a token from a cache file,
+     * probing only the tokens missing from it, and saves the file again if
+     * any was probed.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param library Path of the cryptoki library, part of the cache key.
+     * @param cacheFile The cache file; created if it does not exist.
+     * @return The registry.
+     * @throws PKCS11Exception If a token cannot be probed.
+     * @throws IOException If the cache file cannot be read or written.
+     */
+    public static MechanismRegistry load(PKCS11 p11, String library, Path cacheFile) throws PKCS11Exception, IOException {
+        Properties cache = new Properties();
+        if (Files.exists(cacheFile)) {
+            try (InputStream in = Files.newInputStream(cacheFile)) {
+                cache.load(in);
+            }
+        }
+
+        CK_INFO info = Cryptoki.C_GetInfo(p11);
+        Map<Long, Map<Long, CK_MECHANISM_INFO>> slots = new TreeMap<>();
+        boolean probed = false;
+
+        for (long slotId : Cryptoki.C_GetSlotList(p11, true)) {
+            String key = cacheKey(library, info, Cryptoki.C_GetTokenInfo(p11, slotId));
+
+            Map<Long, CK_MECHANISM_INFO> mechanisms = read(cache, key);
+            if (mechanisms == null) {
+                mechanisms = probe(p11, slotId);
+                write(cache, key, mechanisms);
+                probed = true;
+            }
+            slots.put(slotId, mechanisms);
+        }
+
+        if (probed) {
+            save(cache, cacheFile);
+        }
+        return new MechanismRegistry(slots);
+    }
+
+    /**
+     * @return The slots known to the registry.
+     */
+    public Set<Long> getSlots() {
+        return Collections.unmodifiableSet(slots.keySet());
+    }
+
+    /**
+     * @param slotId The slot.
+     * @return The mechanisms supported by the token of the slot, empty if the slot is unknown.
+     */
+    public Set<Long> getMechanisms(long slotId) {
+        Map<Long, CK_MECHANISM_INFO> mechanisms = slots.get(slotId);
+        return mechanisms == null ? Collections.emptySet() : Collections.unmodifiableSet(mechanisms.keySet());
+    }
+
+    /**
+     * @param slotId The slot.
+     * @param mechanism The mechanism.
+     * @return The information of the mechanism, or null if the slot does not support it.
+     */
+    public CK_MECHANISM_INFO getInfo(long slotId, long mechanism) {
+        Map<Long, CK_MECHANISM_INFO> mechanisms = slots.get(slotId);
+        return mechanisms == null ? null : mechanisms.get(mechanism);
+    }
+
+    /**
+     * @param slotId The slot.
+     * @param mechanism The mechanism.
+     * @return true if the slot supports the mechanism.
+     */
+    public boolean supports(long slotId, long mechanism) {
+        return getInfo(slotId, mechanism) != null;
+    }
+
+    /**
+     * @param slotId The slot.
+     * @param mechanism The mechanism.
+     * @param keySize The key size, in the unit of the mechanism (bits or
+     * bytes), or 0 not to check it.
+     * @param flags The <code>CKF_</code> usage flags required, e.g.
+     * <code>CKF_SIGN</code>, or 0 not to check them.
+     * @return true if the slot supports the mechanism for that key size and usage.
+     */
+    public boolean supports(long slotId, long mechanism, long keySize, long flags) {
+        CK_MECHANISM_INFO info = getInfo(slotId, mechanism);
+        if (info == null || (info.flags & flags) != flags) {
+            return false;
+        }
+        /* a maximum of 0 means no limit was reported */
+        return keySize == 0
+                || (keySize >= info.ulMinKeySize && (info.ulMaxKeySize == 0 || keySize <= info.ulMaxKeySize));
+    }
+
+    /**
+     * @param mechanism The mechanism.
+     * @param keySize The key size, or 0 not to check it.
+     * @param flags The usage flags required, or 0 not to check them.
+     * @return The slots supporting the mechanism for that key size and usage.
+     */
+    public List<Long> slotsSupporting(long mechanism, long keySize, long flags) {
+        List<Long> supporting = new ArrayList<>();
+        for (long slotId : slots.keySet()) {
+            if (supports(slotId, mechanism, keySize, flags)) {
+                supporting.add(slotId);
+            }
+        }
+        return supporting;
+    }
+
+    /**
+     * Fails the way the token would if it does not support a mechanism.
+     *
+     * @param slotId The slot.
+     * @param mechanism The mechanism.
+     * @param keySize The key size, or 0 not to check it.
+     * @param flags The usage flags required, or 0 not to check them.
+     * @throws PKCS11Exception CKR_MECHANISM_INVALID if the slot does not support it.
+     */
+    public void check(long slotId, long mechanism, long keySize, long flags) throws PKCS11Exception {
+        if (slots.containsKey(slotId) && !supports(slotId, mechanism, keySize, flags)) {
+            throw new PKCS11Exception(CKR_MECHANISM_INVALID, null);
+        }
+    }
+
+    private static Map<Long, CK_MECHANISM_INFO> probe(PKCS11 p11, long slotId) throws PKCS11Exception {
+        Map<Long, CK_MECHANISM_INFO> mechanisms = new TreeMap<>();
+        for (long mechanism : Cryptoki.C_GetMechanismList(p11, slotId)) {
+            mechanisms.put(mechanism, Cryptoki.C_GetMechanismInfo(p11, slotId, mechanism));
+        }
+        return mechanisms;
+    }
+
+    private static String cacheKey(String library, CK_INFO info, CK_TOKEN_INFO token) {
+        return library
+                + "|" + GetInfo.versionString(info.libraryVersion)
+                + "|" + new String(token.manufacturerID).trim()
+                + "|" + new String(token.model).trim()
+                + "|" + new String(token.serialNumber).trim()
+                + "|" + GetInfo.versionString(token.firmwareVersion);
+    }
+
+    /* entries are "<key>|0x<mechanism>=<min>,<max>,<flags>" */
+    private static Map<Long, CK_MECHANISM_INFO> read(Properties cache, String key) {
+        if (cache.getProperty(key + "|" + PROBED) == null) {
+            return null;
+        }
+        Map<Long, CK_MECHANISM_INFO> mechanisms = new TreeMap<>();
+        String prefix = key + "|0x";
+        for (String name : cache.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                String[] values = cache.getProperty(name).split(",");
+                if (values.length != 3) {
+                    /* corrupted entry, probe again */
+                    return null;
+                }
+                mechanisms.put(Long.parseUnsignedLong(name.substring(prefix.length()), 16),
+                        new CK_MECHANISM_INFO(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])));
+            }
+        }
+        return mechanisms;
+    }
+
+    private static void write(Properties cache, String key, Map<Long, CK_MECHANISM_INFO> mechanisms) {
+        cache.setProperty(key + "|" + PROBED, Integer.toString(mechanisms.size()));
+        for (Map.Entry<Long, CK_MECHANISM_INFO> entry : mechanisms.entrySet()) {
+            CK_MECHANISM_INFO info = entry.getValue();
+            cache.setProperty(key + "|0x" + Long.toHexString(entry.getKey()),
+                    info.ulMinKeySize + "," + info.ulMaxKeySize + "," + info.flags);
+        }
+    }
+
+    /* write next to the file and move it in place, so that a crash never leaves half a file */
+    private static void save(Properties cache, Path cacheFile) throws IOException {
+        Path dir = cacheFile.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, cacheFile.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                cache.store(out, "PKCS#11 mechanisms, see pkcs11.jsun.MechanismRegistry");
+            }
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
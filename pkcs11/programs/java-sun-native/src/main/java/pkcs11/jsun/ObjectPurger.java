@@ -0,0 +1,380 @@
+package pkcs11.jsun;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Destroys every object matching a template or a label prefix, over several
+ * pooled sessions.
+ * <p>
+ * The matching handles are collected first, a page of
+ * <code>C_FindObjects</code> at a time, so that no search is active while
+ * objects are destroyed. They are then cut into chunks, each chunk being
+ * destroyed on one leased session. Cryptoki cannot search on a label prefix:
+ * the label of every object matching the template is read and compared on
+ * the host. A dry run goes through the same steps without destroying
+ * anything, and reports what would have been destroyed.
+ * <p>
+ * Usage : java ...ObjectPurger -prefix &lt;label&gt; [-dry-run]
+ * <li>-prefix destroy the token objects whose label starts with &lt;label&gt;
+ * <li>-dry-run only list the objects that would be destroyed
+ */
+public class ObjectPurger implements AutoCloseable {
+
+    /**
+     * Default number of handles returned per <code>C_FindObjects</code> call.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 256;
+
+    /**
+     * Default number of objects destroyed on a session per lease.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private final SessionPool pool;
+    private final HandleCache cache;
+    private final int pageSize;
+    private final int chunkSize;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a purger using as many worker threads as there are sessions in
+     * the pool.
+     *
+     * @param pool The sessions to search and destroy on.
+     * @param cache The handle cache of the token, purged of the destroyed
+     * handles, or null.
+     */
+    public ObjectPurger(SessionPool pool, HandleCache cache) {
+        this(pool, cache, DEFAULT_PAGE_SIZE, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a purger using as many worker threads as there are sessions in
+     * the pool.
+     *
+     * @param pool The sessions to search and destroy on.
+     * @param cache The handle cache of the token, purged of the destroyed
+     * handles, or null.
+     * @param pageSize Number of handles returned per <code>C_FindObjects</code> call.
+     * @param chunkSize Number of objects destroyed on a session per lease.
+     */
+    public ObjectPurger(SessionPool pool, HandleCache cache, int pageSize, int chunkSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.pool = pool;
+        this.cache = cache;
+        this.pageSize = pageSize;
+        this.chunkSize = chunkSize;
+        this.executor = Executors.newFixedThreadPool(pool.getSize());
+    }
+
+    /**
+     * Destroys every object matching a template.
+     *
+     * @param template Cryptoki template of the objects to destroy; an empty
+     * template matches every object the sessions can see.
+     * @param dryRun true to only report the objects, without destroying them.
+     * @return The report of the purge.
+     * @throws PKCS11Exception If the objects cannot be searched.
+     * @throws InterruptedException If the thread is interrupted while waiting for the purge.
+     */
+    public Report purge(CK_ATTRIBUTE[] template, boolean dryRun) throws PKCS11Exception, InterruptedException {
+        return purge(template, null, dryRun);
+    }
+
+    /**
+     * Destroys every object matching a template whose label starts with a
+     * prefix.
+     *
+     * @param template Cryptoki template narrowing the search, e.g. on
+     * CKA_TOKEN or CKA_CLASS; must not contain CKA_LABEL.
+     * @param labelPrefix Prefix of the labels of the objects to destroy, or
+     * null to destroy every object matching the template.
+     * @param dryRun true to only report the objects, without destroying them.
+     * @return The report of the purge.
+     * @throws PKCS11Exception If the objects cannot be searched.
+     * @throws InterruptedException If the thread is interrupted while waiting for the purge.
+     */
+    public Report purge(CK_ATTRIBUTE[] template, String labelPrefix, boolean dryRun)
+            throws PKCS11Exception, InterruptedException {
+        long[] handles = findAll(template);
+        Entry[] entries = new Entry[handles.length];
+        List<Future<?>> chunks = new ArrayList<>();
+
+        for (int from = 0; from < handles.length; from += chunkSize) {
+            int start = from;
+            int end = Math.min(from + chunkSize, handles.length);
+            chunks.add(executor.submit(() -> purgeChunk(handles, start, end, labelPrefix, dryRun, entries)));
+        }
+
+        for (Future<?> chunk : chunks) {
+            try {
+                chunk.get();
+            } catch (ExecutionException ex) {
+                /* per-object failures are recorded by purgeChunk */
+            }
+        }
+
+        List<Entry> matched = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry != null) {
+                matched.add(entry);
+            }
+        }
+        return new Report(dryRun, matched);
+    }
+
+    /**
+     * Stops the worker threads. The session pool is left open.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private long[] findAll(CK_ATTRIBUTE[] template) throws PKCS11Exception, InterruptedException {
+        try (SessionPool.Lease lease = pool.lease()) {
+            try {
+                return ManageObjects.findAll(pool.getP11(), lease.handle(), template, pageSize);
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                throw ex;
+            }
+        }
+    }
+
+    private void purgeChunk(long[] handles, int start, int end, String labelPrefix, boolean dryRun, Entry[] entries) {
+        boolean readLabels = labelPrefix != null || dryRun;
+
+        try (SessionPool.Lease lease = pool.lease()) {
+            for (int i = start; i < end; ++i) {
+                long handle = handles[i];
+                String label = null;
+                try {
+                    if (readLabels) {
+                        label = readLabel(lease.handle(), handle);
+                        if (labelPrefix != null && (label == null || !label.startsWith(labelPrefix))) {
+                            continue;
+                        }
+                    }
+                    if (!dryRun) {
+                        if (cache != null) {
+                            ManageObjects.delete(pool.getP11(), lease.handle(), handle, cache);
+                        } else {
+                            ManageObjects.delete(pool.getP11(), lease.handle(), handle);
+                        }
+                    }
+                    entries[i] = new Entry(handle, label, null);
+                } catch (PKCS11Exception ex) {
+                    lease.check(ex);
+                    entries[i] = new Entry(handle, label, ex);
+                }
+            }
+        } catch (Exception ex) {
+            /* no session could be leased: fail whatever is left of the chunk */
+            for (int i = start; i < end; ++i) {
+                if (entries[i] == null) {
+                    entries[i] = new Entry(handles[i], null, ex);
+                }
+            }
+        }
+    }
+
+    private String readLabel(long hSession, long handle) throws PKCS11Exception {
+        CK_ATTRIBUTE[] attr = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL)
+        };
+        Cryptoki.C_GetAttributeValue(pool.getP11(), hSession, handle, attr);
+        /* the wrapper returns labels as UTF-8 decoded characters */
+        Object label = attr[0].pValue;
+        if (label instanceof char[]) {
+            return new String((char[]) label).trim();
+        }
+        if (label instanceof byte[]) {
+            return new String((byte[]) label, StandardCharsets.UTF_8).trim();
+        }
+        return null;
+    }
+
+    /**
+     * Outcome of one object matched by a purge.
+     */
+    public static class Entry {
+
+        private final long handle;
+        private final String label;
+        private final Exception error;
+
+        Entry(long handle, String label, Exception error) {
+            this.handle = handle;
+            this.label = label;
+            this.error = error;
+        }
+
+        /**
+         * @return The handle of the object.
+         */
+        public long getHandle() {
+            return handle;
+        }
+
+        /**
+         * @return The label of the object, or null if it was not read.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return true if the object was destroyed, or would have been on a dry run.
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * @return The reason the object could not be destroyed, or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Objects matched by a purge, in the order the token returned them.
+     */
+    public static class Report {
+
+        private final boolean dryRun;
+        private final List<Entry> entries;
+
+        Report(boolean dryRun, List<Entry> entries) {
+            this.dryRun = dryRun;
+            this.entries = Collections.unmodifiableList(entries);
+        }
+
+        /**
+         * @return true if nothing was destroyed.
+         */
+        public boolean isDryRun() {
+            return dryRun;
+        }
+
+        /**
+         * @return The objects matched.
+         */
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return The number of objects destroyed, or that would have been on a dry run.
+         */
+        public int getDestroyedCount() {
+            int count = 0;
+            for (Entry entry : entries) {
+                if (entry.isSuccess()) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return The number of objects that could not be destroyed.
+         */
+        public int getFailedCount() {
+            return entries.size() - getDestroyedCount();
+        }
+
+        /**
+         * Prints one line per object, then the totals.
+         *
+         * @param out Where to print the report.
+         */
+        public void print(PrintStream out) {
+            for (Entry entry : entries) {
+                String status = !entry.isSuccess() ? "failed: " + entry.getError()
+                        : dryRun ? "would be destroyed" : "destroyed";
+                out.println(entry.getHandle() + "\t" + (entry.getLabel() != null ? entry.getLabel() : "") + "\t" + status);
+            }
+            out.println((dryRun ? "Would destroy " : "Destroyed ") + getDestroyedCount() + " object(s), "
+                    + getFailedCount() + " failure(s)");
+        }
+    }
+
+    /**
+     * easy access to System.out.println
+     */
+    static public void println(String s) {
+        System.out.println(s);
+    }
+
+    /**
+     * display runtime usage of the class
+     */
+    public static void usage() {
+        println("java ...ObjectPurger -prefix <label> [-dry-run]");
+        println("");
+        println("-prefix        destroy the token objects whose label starts with <label>");
+        println("-dry-run       only list the objects that would be destroyed");
+        println("");
+
+        System.exit(1);
+    }
+
+    /**
+     * main execution method
+     */
+    public static void main(String[] args) throws Exception {
+        String labelPrefix = null;
+        boolean dryRun = false;
+
+        /*
+         * process command line arguments
+         */
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equalsIgnoreCase("-prefix")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+                labelPrefix = args[i];
+            } else if (args[i].equalsIgnoreCase("-dry-run")) {
+                dryRun = true;
+            } else {
+                usage();
+            }
+        }
+
+        /* refuse to purge every object of the token by accident */
+        if (labelPrefix == null || labelPrefix.isEmpty()) {
+            usage();
+        }
+
+        /* the library, slot, PIN and sessions are configured on the module */
+        Pkcs11Module module = Pkcs11Module.getInstance();
+        CK_ATTRIBUTE[] template = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE)
+        };
+
+        try (ObjectPurger purger = new ObjectPurger(module.pool(), module.handles())) {
+            purger.purge(template, labelPrefix, dryRun).print(System.out);
+        }
+    }
+}
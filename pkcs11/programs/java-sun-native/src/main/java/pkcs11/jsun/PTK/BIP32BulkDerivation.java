@@ -0,0 +1,210 @@
+package pkcs11.jsun.ptk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import pkcs11.jsun.Cryptoki;
+import pkcs11.jsun.SessionPool;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Derives the public keys of a range of BIP32 children of one parent.
+ * <p>
+ * The range is cut in blocks derived in parallel, one block per session of the
+ * pool at a time. Every child is derived as a session object, its public key
+ * read with <code>C_GetAttributeValue</code>, and both of its keys destroyed
+ * right away, so the token never holds more than one child per session.
+ * <p>
+ * The public keys are written to the output in index order, as consecutive
+ * 33-byte compressed points. At most a few blocks per session are kept in
+ * memory waiting to be written.
+ * <p>
+ * Usage :
+ * <pre>
+ * long hParent = cache.node(BIP32BulkDerivation.parsePath("m/44'/0'/0'/0")).getPrivateKey();
+ * BIP32BulkDerivation.derive(pool, hParent, 0, 100000, out);
+ * </pre>
+ */
+public class BIP32BulkDerivation {
+
+    /**
+     * Size of a compressed secp256k1 public key.
+     */
+    public static final int PUBLIC_KEY_LENGTH = 33;
+
+    /**
+     * Default number of children derived by a task.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    /* raised when the token returns a public key of the wrong size */
+    private static final long CKR_GENERAL_ERROR = 0x00000005L;
+
+    /* blocks in flight per session of the pool */
+    private static final int BLOCKS_PER_SESSION = 2;
+
+    /**
+     * Derives the children of a parent with the default block size.
+     *
+     * @see #derive(SessionPool, long, long, long, int, OutputStream)
+     */
+    public static long derive(SessionPool pool, long hParent, long from, long to,
+            OutputStream out) throws PKCS11Exception, IOException, InterruptedException {
+        return derive(pool, hParent, from, to, DEFAULT_BLOCK_SIZE, out);
+    }
+
+    /**
+     * Derives the children <code>from</code> (included) to <code>to</code>
+     * (excluded) of a parent and writes their public keys to a stream.
+     *
+     * @param pool Sessions the children are derived on. The parent must be
+     * visible from all of them, e.g. a session object of the same application.
+     * @param hParent Handle of the parent private key.
+     * @param from First child index, hardened ones or'ed with
+     * {@link PTK_Constants#CKF_BIP32_HARDENED}.
+     * @param to Index after the last child.
+     * @param blockSize Number of children derived by a task.
+     * @param out Where the public keys are written; not closed.
+     * @return The number of public keys written.
+     * @throws PKCS11Exception If a derivation fails; the keys of the blocks
+     * before it are already written.
+     * @throws IOException If the output cannot be written.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public static long derive(SessionPool pool, long hParent, long from, long to, int blockSize,
+            OutputStream out) throws PKCS11Exception, IOException, InterruptedException {
+        if (from < 0 || to > 0x100000000L || from > to) {
+            throw new IllegalArgumentException("Invalid index range: " + from + ".." + to);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(pool.getSize());
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        int maxPending = pool.getSize() * BLOCKS_PER_SESSION;
+        long written = 0;
+
+        try {
+            for (long start = from; start < to; start += blockSize) {
+                long first = start;
+                int count = (int) Math.min(blockSize, to - start);
+                pending.add(executor.submit(() -> deriveBlock(pool, hParent, first, count)));
+
+                /* write the oldest block before getting too far ahead */
+                if (pending.size() >= maxPending) {
+                    written += write(pending.poll(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                written += write(pending.poll(), out);
+            }
+            out.flush();
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            executor.shutdown();
+        }
+        return written;
+    }
+
+    /**
+     * Parses a derivation path such as <code>m/44'/0'/0'/0</code>, hardened
+     * indexes being marked with <code>'</code> or <code>h</code>.
+     *
+     * @param path The path.
+     * @return The indexes of the path, hardened ones or'ed with
+     * {@link PTK_Constants#CKF_BIP32_HARDENED}.
+     */
+    public static long[] parsePath(String path) {
+        String[] parts = path.trim().split("/");
+        int start = parts[0].equalsIgnoreCase("m") ? 1 : 0;
+        long[] indexes = new long[parts.length - start];
+
+        for (int i = start; i < parts.length; ++i) {
+            String part = parts[i];
+            boolean hardened = part.endsWith("'") || part.endsWith("h") || part.endsWith("H");
+            if (hardened) {
+                part = part.substring(0, part.length() - 1);
+            }
+            long index = Long.parseLong(part);
+            if (index < 0 || index >= PTK_Constants.CKF_BIP32_HARDENED) {
+                throw new IllegalArgumentException("Invalid index in derivation path: " + parts[i]);
+            }
+            indexes[i - start] = hardened ? index | PTK_Constants.CKF_BIP32_HARDENED : index;
+        }
+        return indexes;
+    }
+
+    private static byte[] deriveBlock(SessionPool pool, long hParent, long first, int count) throws Exception {
+        PKCS11 p11 = pool.getP11();
+        byte[] block = new byte[count * PUBLIC_KEY_LENGTH];
+
+        try (SessionPool.Lease lease = pool.lease()) {
+            long hSession = lease.handle();
+            try {
+                for (int i = 0; i < count; ++i) {
+                    byte[] publicKey = deriveChild(p11, hSession, hParent, first + i);
+                    System.arraycopy(publicKey, 0, block, i * PUBLIC_KEY_LENGTH, PUBLIC_KEY_LENGTH);
+                }
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                throw ex;
+            }
+        }
+        return block;
+    }
+
+    private static byte[] deriveChild(PKCS11 p11, long hSession, long hParent, long index) throws PKCS11Exception {
+        long[] path = {index};
+        CK_BIP32_CHILD_DERIVE_PARAMS child = BIP32KeyDerivation.generateChildKeyPair(p11, hSession, hParent, path, false);
+
+        try {
+            CK_ATTRIBUTE[] value = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE)
+            };
+            Cryptoki.C_GetAttributeValue(p11, hSession, child.hPublicKey, value);
+
+            byte[] publicKey = value[0].getByteArray();
+            if (publicKey == null || publicKey.length != PUBLIC_KEY_LENGTH) {
+                throw new PKCS11Exception(CKR_GENERAL_ERROR, null);
+            }
+            return publicKey;
+        } finally {
+            /* the private key goes even if the public one cannot be destroyed */
+            try {
+                Cryptoki.C_DestroyObject(p11, hSession, child.hPublicKey);
+            } finally {
+                Cryptoki.C_DestroyObject(p11, hSession, child.hPrivateKey);
+            }
+        }
+    }
+
+    private static long write(Future<byte[]> block, OutputStream out) throws PKCS11Exception, IOException, InterruptedException {
+        byte[] keys;
+        try {
+            keys = block.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof PKCS11Exception) {
+                throw (PKCS11Exception) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        out.write(keys);
+        return keys.length / PUBLIC_KEY_LENGTH;
+    }
+}
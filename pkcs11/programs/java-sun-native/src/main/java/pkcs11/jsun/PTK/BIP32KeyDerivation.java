@@ -1,8 +1,15 @@
 package pkcs11.jsun.ptk;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
+import pkcs11.jsun.Cryptoki;
+import pkcs11.jsun.HandleCache;
+import pkcs11.jsun.ManageObjects;
+import pkcs11.jsun.Pkcs11Module;
+import pkcs11.jsun.SessionPool;
 import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
 import sun.security.pkcs11.wrapper.CK_MECHANISM;
 import sun.security.pkcs11.wrapper.PKCS11;
@@ -11,8 +18,13 @@ import sun.security.pkcs11.wrapper.PKCS11Exception;
 
 /**
  * This class demonstrates how to use BIP32 Usage : java ...BIP32KeyDerivation
- * -keyName &lt;keyname&gt; -create
+ * -keyName &lt;keyname&gt; -create [-path &lt;path&gt; -from &lt;n&gt; -to &lt;n&gt;
+ * -out &lt;file&gt; [-sessions &lt;n&gt;] [-public]]
  * <li><i>keyname</i> name (label) of the key to delete
+ * <li><i>path</i>, <i>from</i>, <i>to</i>, <i>file</i> derive the children
+ * from..to (excluded) of path and write their public keys to file
+ * <li><i>-public</i> derive the children in software from the exported
+ * public key and chain code of path, non-hardened indexes only
  */
 public class BIP32KeyDerivation {
 
@@ -28,38 +40,32 @@ public class BIP32KeyDerivation {
      * display runtime usage of the class
      */
     public static void usage() {
-        println("java ...BIP32KeyDerivation -keyName <keyname> -create");
+        println("java ...BIP32KeyDerivation -keyName <keyname> -create [-path <path> -from <n> -to <n> -out <file> [-sessions <n>] [-public]]");
         println("");
         println("-keyName <keyname> \tname (label) of the generated key");
         println("-create \t\tcreate a new key");
+        println("-path <path> \t\tparent of the children to derive, e.g. m/44'/0'/0'/0");
+        println("-from <n> -to <n> \tindex range of the children to derive, to excluded");
+        println("-out <file> \t\tfile the 33-byte public keys of the children are written to");
+        println("-sessions <n> \t\tnumber of sessions deriving in parallel (default 4)");
+        println("-public \t\tderive the children in software from the public key of path");
         println("");
         System.exit(1);
     }
 
-     /**
-     * Set PKCS#11 library path.
-     *
-     * @return The path of the cryptoki library.
-     */
-    public static String setupLibrary(String libPath) throws Exception {
-        String library;
-
-        if (new File(libPath).exists()) {
-            library = libPath;
-        } else {
-            throw new Exception("Library not found on the plateform.");
-        }
-        return library;
-    }
-
     /**
      * main execution method
      */
     public static void main(String[] args) {
         long session;
-        long slotId = 0;
         boolean create = false;
         String keyName = "";
+        String path = "m";
+        long from = 0;
+        long to = 0;
+        String out = null;
+        int sessions = 4;
+        boolean software = false;
 
         /*
          * process command line arguments
@@ -77,6 +83,38 @@ public class BIP32KeyDerivation {
                 keyName = args[i];
             } else if (args[i].equalsIgnoreCase("-create")) {
                 create = true;
+            } else if (args[i].equalsIgnoreCase("-path")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+
+                path = args[i];
+            } else if (args[i].equalsIgnoreCase("-from")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+
+                from = Long.parseLong(args[i]);
+            } else if (args[i].equalsIgnoreCase("-to")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+
+                to = Long.parseLong(args[i]);
+            } else if (args[i].equalsIgnoreCase("-out")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+
+                out = args[i];
+            } else if (args[i].equalsIgnoreCase("-sessions")) {
+                if (++i >= args.length) {
+                    usage();
+                }
+
+                sessions = Integer.parseInt(args[i]);
+            } else if (args[i].equalsIgnoreCase("-public")) {
+                software = true;
             } else {
                 usage();
             }
@@ -84,48 +122,71 @@ public class BIP32KeyDerivation {
 
         try {
             /*
-             * Initialize Cprov so that the library takes care
-             * of multithread locking
+             * The shared module loads the library configured with
+             * pkcs11.library or PKCS11_LIBRARY, e.g. the ProtectToolkit one,
+             * and finalizes it when the JVM exits.
              */
-            String ptk7Windows = "C:\\Program Files\\Safenet\\ProtectToolkit 7\\C SDK\\bin\\sw\\p11.dll";
-
-            String library = setupLibrary(ptk7Windows);
-            PKCS11 p11 = PKCS11.getInstance(library, "C_GetFunctionList", null, false);
+            Pkcs11Module module = Pkcs11Module.getInstance();
+            PKCS11 p11 = module.getP11();
 
             /*
-             * Open a session
+             * Lease a session from the slot's pool; the lease closes it for us.
              */
-            session = p11.C_OpenSession(slotId, PKCS11Constants.CKF_RW_SESSION, null, null);
-
-            long pKey;
-            if (create) {
-                /* Generate key pair and exit. */
-                println("Generating Keys \"" + keyName + "\" in slot 0 and 2\n");
-                pKey = generateSecretKey(p11, session, keyName);
-                println("Done\n");
-            } else {
-                pKey = findSecretKey(p11, session, keyName);
-            }
-
-            //Now do ECDH Key derive
-            println("Generating derived key : ");
-            byte[] array = runDerivationTests(p11, session, pKey);
-            println(bytesToHex(array));
-            println("\n");
-
-            /*
-             * Close the session.
-             *
-             * Note that we are not using p11.
-             */
-            p11.C_CloseSession(session);
+            try (SessionPool pool = module.newSessionPool(out == null ? 1 : sessions)) {
+                long pKey;
+                BIP32NodeCache cache;
+
+                /*
+                 * The cached nodes are session objects of this session, it
+                 * stays open in the pool once given back.
+                 */
+                try (SessionPool.Lease lease = pool.lease()) {
+                    session = lease.handle();
+
+                    if (create) {
+                        /* Generate key pair and exit. */
+                        println("Generating Keys \"" + keyName + "\" in slot " + module.getSlotId() + "\n");
+                        pKey = generateSecretKey(p11, session, keyName);
+                        println("Done\n");
+                    } else {
+                        pKey = findSecretKey(p11, session, keyName, module.handles());
+                    }
+
+                    if (out == null) {
+                        //Now do ECDH Key derive
+                        println("Generating derived key : ");
+                        byte[] array = runDerivationTests(p11, session, pKey);
+                        println(bytesToHex(array));
+                        println("\n");
+                        cache = null;
+                    } else {
+                        cache = BIP32NodeCache.fromSeed(p11, session, pKey);
+                    }
+                }
 
-            /*
-             * All done with p11
-             *
-             * Note that we are not using p11.
-             */
-            p11.C_Finalize(null);
+                if (cache != null) {
+                    BIP32NodeCache.Node parent = cache.node(BIP32BulkDerivation.parsePath(path));
+
+                    println("Deriving children " + from + " to " + to + " of " + path + " into " + out);
+                    long start = System.nanoTime();
+                    long count;
+                    try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(out))) {
+                        if (software) {
+                            /* export the parent once, the token is not called afterwards */
+                            BIP32PublicDerivation xpub;
+                            try (SessionPool.Lease lease = pool.lease()) {
+                                xpub = BIP32PublicDerivation.export(p11, lease.handle(), parent.getPublicKey());
+                            }
+                            count = xpub.deriveRange(from, to, stream);
+                        } else {
+                            count = BIP32BulkDerivation.derive(pool, parent.getPrivateKey(), from, to, stream);
+                        }
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    println(count + " public keys in " + String.format("%.2f", seconds) + " s ("
+                            + String.format("%.0f", count / seconds) + " keys/s)\n");
+                }
+            }
 
         } catch (PKCS11Exception ex) {
             /*
@@ -147,6 +208,21 @@ public class BIP32KeyDerivation {
      */
     public static long generateSecretKey(PKCS11 p11, long session,
             String label) throws Exception {
+        return generateSecretKey(p11, session, label, true);
+    }
+
+    /**
+     * Generate a symetric key.
+     *
+     * @param session handle to an open session
+     *
+     * @param label name (label) to give the generated key
+     *
+     * @param token true to store the key on the token, false for a session object
+     *
+     */
+    public static long generateSecretKey(PKCS11 p11, long session,
+            String label, boolean token) throws Exception {
         byte[] testvector = {0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f};
         long pKey;
         CK_ATTRIBUTE[] attr
@@ -155,12 +231,12 @@ public class BIP32KeyDerivation {
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE, testvector),
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_GENERIC_SECRET),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, token),
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE)
                 };
 
-        pKey = p11.C_CreateObject(session, attr);
+        pKey = Cryptoki.C_CreateObject(p11, session, attr);
         return pKey;
     }
 
@@ -173,35 +249,33 @@ public class BIP32KeyDerivation {
      *
      */
     public static CK_BIP32_MASTER_DERIVE_PARAMS generateMasterKeyPair(PKCS11 p11, long hPrivateSession, long hSeed) throws PKCS11Exception {
+        return generateMasterKeyPair(p11, hPrivateSession, hSeed, true);
+    }
+
+    /**
+     * Generate a BIP32 master key pair
+     *
+     * @param hPrivateSession handle to an open session
+     *
+     * @param hSeed OBJECT_HANDLE linked to a symetric key
+     *
+     * @param token true to store the keys on the token, false for session objects
+     *
+     */
+    public static CK_BIP32_MASTER_DERIVE_PARAMS generateMasterKeyPair(PKCS11 p11, long hPrivateSession, long hSeed,
+            boolean token) throws PKCS11Exception {
         String pubLabel = "Master BIP32 Key(Public)";
         String priLabel = "Master BIP32 Key(Private)";
 
-        CK_ATTRIBUTE[] pubKeyAttr
-                = {
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, pubLabel.getBytes(StandardCharsets.US_ASCII)),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
-                };
-
-        CK_ATTRIBUTE[] priKeyAttr
-                = {
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, priLabel.getBytes(StandardCharsets.US_ASCII)),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
-                };
+        CK_ATTRIBUTE[] pubKeyAttr = bip32KeyTemplate(pubLabel, token);
+        CK_ATTRIBUTE[] priKeyAttr = bip32KeyTemplate(priLabel, token);
 
         CK_BIP32_MASTER_DERIVE_PARAMS mechParams
                 = new CK_BIP32_MASTER_DERIVE_PARAMS(pubKeyAttr, priKeyAttr);
 
         CK_MECHANISM mech = new PTK_CK_MECHANISM(PTK_Constants.CKM_BIP32_MASTER_DERIVE, mechParams);
 
-     p11.C_DeriveKey(hPrivateSession, mech, hSeed, priKeyAttr);
+        Cryptoki.C_DeriveKey(p11, hPrivateSession, mech, hSeed, priKeyAttr);
 
         return mechParams;
     }
@@ -216,42 +290,64 @@ public class BIP32KeyDerivation {
      */
     public static CK_BIP32_CHILD_DERIVE_PARAMS generateChildKeyPair(PKCS11 p11, long hPrivateSession,
             long hParent) throws PKCS11Exception {
-        String pubLabel = "Child BIP32 Key(Public)";
-        String priLabel = "Child BIP32 Key(Private)";
+        long[] path = {0L, 1L, 4L};
 
-        CK_ATTRIBUTE[] pubKeyAttr
-                = {
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, pubLabel.getBytes(StandardCharsets.US_ASCII)),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
-                };
+        return generateChildKeyPair(p11, hPrivateSession, hParent, path, true);
+    }
 
-        CK_ATTRIBUTE[] priKeyAttr
-                = {
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, priLabel.getBytes(StandardCharsets.US_ASCII)),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
-                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
-                };
+    /**
+     * Generate a BIP32 child key pair at a path below a parent key
+     *
+     * @param hPrivateSession handle to an open session
+     *
+     * @param hParent OBJECT_HANDLE linked to the parent private key
+     *
+     * @param path indexes to derive from the parent, hardened ones or'ed with
+     * PTK_Constants.CKF_BIP32_HARDENED
+     *
+     * @param token true to store the keys on the token, false for session objects
+     *
+     */
+    public static CK_BIP32_CHILD_DERIVE_PARAMS generateChildKeyPair(PKCS11 p11, long hPrivateSession,
+            long hParent, long[] path, boolean token) throws PKCS11Exception {
+        String pubLabel = "Child BIP32 Key(Public)";
+        String priLabel = "Child BIP32 Key(Private)";
 
-        long[] path = {0L, 1L, 4L};
+        CK_ATTRIBUTE[] pubKeyAttr = bip32KeyTemplate(pubLabel, token);
+        CK_ATTRIBUTE[] priKeyAttr = bip32KeyTemplate(priLabel, token);
 
         CK_BIP32_CHILD_DERIVE_PARAMS mechParams
                 = new CK_BIP32_CHILD_DERIVE_PARAMS(pubKeyAttr, priKeyAttr, path);
 
         CK_MECHANISM mech = new PTK_CK_MECHANISM(PTK_Constants.CKM_BIP32_CHILD_DERIVE, mechParams);
 
-   p11.C_DeriveKey(hPrivateSession, mech, hParent, priKeyAttr);
+        Cryptoki.C_DeriveKey(p11, hPrivateSession, mech, hParent, priKeyAttr);
 
         return mechParams;
 
     }
 
+    /**
+     * Build the template of a BIP32 key
+     *
+     * @param label name (label) to give the key
+     *
+     * @param token true for a token object, false for a session object
+     *
+     */
+    static CK_ATTRIBUTE[] bip32KeyTemplate(String label, boolean token) {
+        CK_ATTRIBUTE[] attr
+                = {
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.getBytes(StandardCharsets.US_ASCII)),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_TOKEN, token),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_SENSITIVE, PKCS11Constants.FALSE),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_DERIVE, PKCS11Constants.TRUE),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_EXTRACTABLE, PKCS11Constants.TRUE),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PTK_Constants.CKK_BIP32)
+                };
+        return attr;
+    }
+
     public static long findSecretKey(PKCS11 p11, long hSession,
             String label) throws PKCS11Exception {
         /* array of one object handles */
@@ -266,11 +362,11 @@ public class BIP32KeyDerivation {
                     new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_GENERIC_SECRET)
                 };
 
-        p11.C_FindObjectsInit(hSession, findAttr);
+        Cryptoki.C_FindObjectsInit(p11, hSession, findAttr);
 
-        hObjects = p11.C_FindObjects(hSession, PTK_Constants.maxObjects);
+        hObjects = Cryptoki.C_FindObjects(p11, hSession, PTK_Constants.maxObjects);
 
-        p11.C_FindObjectsFinal(hSession);
+        Cryptoki.C_FindObjectsFinal(p11, hSession);
 
         if (hObjects.length == 1) {
             /* return the handle of the located object */
@@ -282,6 +378,36 @@ public class BIP32KeyDerivation {
         }
     }
 
+    /**
+     * Find a symetric key by label, going through a handle cache.
+     *
+     * @param hSession handle to an open session
+     *
+     * @param label name (label) of the key
+     *
+     * @param cache handle cache of the token
+     *
+     */
+    public static long findSecretKey(PKCS11 p11, long hSession,
+            String label, HandleCache cache) throws PKCS11Exception {
+        CK_ATTRIBUTE[] findAttr
+                = {
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.getBytes(StandardCharsets.US_ASCII)),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_CLASS, PKCS11Constants.CKO_SECRET_KEY),
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKK_GENERIC_SECRET)
+                };
+
+        try {
+            return ManageObjects.find(p11, hSession, findAttr, cache);
+        } catch (PKCS11Exception ex) {
+            throw ex;
+        } catch (Exception ex) {
+            /* return an object handle which is invalid */
+            println("Key not found");
+            return 0;
+        }
+    }
+
     public static byte[] runDerivationTests(PKCS11 p11, long hPrivateSession,
             long hPrivate) throws Exception {
 
@@ -296,7 +422,7 @@ public class BIP32KeyDerivation {
         CK_ATTRIBUTE[] getDerivedValue = {
             new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE, derivedKey)
         };
-        p11.C_GetAttributeValue(hPrivateSession, childPub, getDerivedValue);
+        Cryptoki.C_GetAttributeValue(p11, hPrivateSession, childPub, getDerivedValue);
 
         return derivedKey;
     }
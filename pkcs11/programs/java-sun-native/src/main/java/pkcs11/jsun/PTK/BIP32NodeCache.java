@@ -0,0 +1,209 @@
+package pkcs11.jsun.ptk;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import pkcs11.jsun.Cryptoki;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Prefix tree of derived BIP32 key pairs, keyed by derivation path.
+ * <p>
+ * Wallets derive many siblings under the same account node, e.g.
+ * m/44'/0'/0'/0/i for thousands of i. With this cache the account node is
+ * derived once from the master key; every address then costs a single
+ * one-level <code>CKM_BIP32_CHILD_DERIVE</code> from the cached parent.
+ * <p>
+ * A node missing from the cache is derived from its deepest cached ancestor in
+ * one call covering the rest of the path. Cached nodes are session objects
+ * owned by the session given to the cache: they are readable from every
+ * session of the application, and disappear when that session is closed.
+ * <p>
+ * Usage :
+ * <pre>
+ * BIP32NodeCache cache = BIP32NodeCache.fromSeed(p11, hSession, hSeed);
+ * long[] account = {44 | HARDENED, 0 | HARDENED, 0 | HARDENED, 0};
+ * CK_BIP32_CHILD_DERIVE_PARAMS address = cache.deriveChild(hSession, account, i, false);
+ * </pre>
+ */
+public class BIP32NodeCache {
+
+    private final PKCS11 p11;
+    private final long hSession;
+    private final Node root;
+
+    /**
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the session owning the cached nodes.
+     * @param hMasterPublic Handle of the master public key.
+     * @param hMasterPrivate Handle of the master private key.
+     */
+    public BIP32NodeCache(PKCS11 p11, long hSession, long hMasterPublic, long hMasterPrivate) {
+        this.p11 = p11;
+        this.hSession = hSession;
+        this.root = new Node(new long[0], hMasterPublic, hMasterPrivate);
+    }
+
+    /**
+     * Derives the master key pair from a seed, once, and caches it as the root
+     * of the tree.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to the session owning the cached nodes.
+     * @param hSeed Handle of the seed (a generic secret key).
+     * @return The cache.
+     * @throws PKCS11Exception If the master derivation fails.
+     */
+    public static BIP32NodeCache fromSeed(PKCS11 p11, long hSession, long hSeed) throws PKCS11Exception {
+        CK_BIP32_MASTER_DERIVE_PARAMS master = BIP32KeyDerivation.generateMasterKeyPair(p11, hSession, hSeed, false);
+        return new BIP32NodeCache(p11, hSession, master.hPublicKey, master.hPrivateKey);
+    }
+
+    /**
+     * Returns the node at a path, deriving and caching it if needed.
+     *
+     * @param path Derivation path from the master, hardened indexes or'ed
+     * with {@link PTK_Constants#CKF_BIP32_HARDENED}; empty for the master.
+     * @return The node.
+     * @throws PKCS11Exception If the derivation fails.
+     */
+    public synchronized Node node(long[] path) throws PKCS11Exception {
+        /* walk down the path, creating the missing levels and remembering the
+           deepest one actually derived */
+        Node node = root;
+        Node base = root;
+        int baseDepth = 0;
+        for (int depth = 0; depth < path.length; ++depth) {
+            final int level = depth + 1;
+            node = node.children.computeIfAbsent(path[depth], k -> new Node(Arrays.copyOf(path, level)));
+            if (node.isDerived()) {
+                base = node;
+                baseDepth = level;
+            }
+        }
+        if (node.isDerived()) {
+            return node;
+        }
+
+        /* derive the rest of the path in a single call, intermediate levels
+           stay underived until they are asked for */
+        CK_BIP32_CHILD_DERIVE_PARAMS derived = BIP32KeyDerivation.generateChildKeyPair(p11, hSession,
+                base.hPrivateKey, Arrays.copyOfRange(path, baseDepth, path.length), false);
+        node.hPublicKey = derived.hPublicKey;
+        node.hPrivateKey = derived.hPrivateKey;
+        return node;
+    }
+
+    /**
+     * Derives a child of a cached parent node. The child itself is not cached:
+     * the caller owns its handles and destroys them when done.
+     *
+     * @param hSession Handle to the session the child is derived on.
+     * @param parentPath Derivation path of the parent, see {@link #node}.
+     * @param index Index of the child below the parent.
+     * @param token true to store the child on the token, false for session objects.
+     * @return The derivation parameters, holding the handles of the child.
+     * @throws PKCS11Exception If a derivation fails.
+     */
+    public CK_BIP32_CHILD_DERIVE_PARAMS deriveChild(long hSession, long[] parentPath, long index, boolean token) throws PKCS11Exception {
+        Node parent = node(parentPath);
+        long[] path = {index};
+        return BIP32KeyDerivation.generateChildKeyPair(p11, hSession, parent.hPrivateKey, path, token);
+    }
+
+    /**
+     * Drops a node and everything below it from the cache, destroying the
+     * derived objects. The master cannot be evicted.
+     *
+     * @param path Derivation path of the node.
+     */
+    public synchronized void evict(long[] path) {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("The master node cannot be evicted");
+        }
+        Node parent = root;
+        for (int i = 0; i < path.length - 1 && parent != null; ++i) {
+            parent = parent.children.get(path[i]);
+        }
+        if (parent != null) {
+            Node node = parent.children.remove(path[path.length - 1]);
+            if (node != null) {
+                destroy(node);
+            }
+        }
+    }
+
+    /**
+     * Drops every node below the master, destroying the derived objects.
+     */
+    public synchronized void clear() {
+        for (Node child : root.children.values()) {
+            destroy(child);
+        }
+        root.children.clear();
+    }
+
+    private void destroy(Node node) {
+        for (Node child : node.children.values()) {
+            destroy(child);
+        }
+        for (long handle : new long[]{node.hPublicKey, node.hPrivateKey}) {
+            if (handle != 0) {
+                try {
+                    Cryptoki.C_DestroyObject(p11, hSession, handle);
+                } catch (PKCS11Exception ex) {
+                    /* already gone with its session */
+                }
+            }
+        }
+    }
+
+    /**
+     * A derived key pair of the tree.
+     */
+    public static class Node {
+
+        private final long[] path;
+        private final Map<Long, Node> children = new HashMap<>();
+        /* 0 until the node is derived, guarded by the cache */
+        private long hPublicKey;
+        private long hPrivateKey;
+
+        Node(long[] path) {
+            this.path = path;
+        }
+
+        Node(long[] path, long hPublicKey, long hPrivateKey) {
+            this.path = path;
+            this.hPublicKey = hPublicKey;
+            this.hPrivateKey = hPrivateKey;
+        }
+
+        boolean isDerived() {
+            return hPrivateKey != 0;
+        }
+
+        /**
+         * @return Derivation path of the node from the master.
+         */
+        public long[] getPath() {
+            return path.clone();
+        }
+
+        /**
+         * @return Handle of the public key of the node.
+         */
+        public long getPublicKey() {
+            return hPublicKey;
+        }
+
+        /**
+         * @return Handle of the private key of the node.
+         */
+        public long getPrivateKey() {
+            return hPrivateKey;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package pkcs11.jsun.ptk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+
+import pkcs11.jsun.Cryptoki;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Derives non-hardened BIP32 child public keys in the JVM.
+ * <p>
+ * A child public key at a non-hardened index only depends on the public key
+ * and chain code of its parent (CKD_pub in BIP32). Those are exported once
+ * from the token, e.g. for the account node derived by
+ * {@link BIP32KeyDerivation}; the children are then computed on all cores
+ * without calling the token, which is enough for watch-only address
+ * generation.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ * <p>
+ * Usage :
+ * <pre>
+ * BIP32PublicDerivation account = BIP32PublicDerivation.export(p11, hSession, node.getPublicKey());
+ * byte[] keys = account.child(0).deriveRange(0, 100000);
+ * </pre>
+ */
+public class BIP32PublicDerivation {
+
+    /**
+     * Size of a compressed secp256k1 public key.
+     */
+    public static final int PUBLIC_KEY_LENGTH = BIP32BulkDerivation.PUBLIC_KEY_LENGTH;
+
+    /**
+     * Size of a BIP32 chain code.
+     */
+    public static final int CHAIN_CODE_LENGTH = 32;
+
+    /* children computed in parallel before being written out */
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final X9ECParameters SECP256K1 = CustomNamedCurves.getByName("secp256k1");
+    private static final FixedPointCombMultiplier MULTIPLIER = new FixedPointCombMultiplier();
+
+    private final ECPoint point;
+    private final byte[] publicKey;
+    private final byte[] chainCode;
+    private final ThreadLocal<Mac> hmac;
+
+    /**
+     * @param publicKey The compressed public key of the parent.
+     * @param chainCode The chain code of the parent.
+     */
+    public BIP32PublicDerivation(byte[] publicKey, byte[] chainCode) {
+        if (chainCode.length != CHAIN_CODE_LENGTH) {
+            throw new IllegalArgumentException("Invalid chain code length: " + chainCode.length);
+        }
+        this.point = SECP256K1.getCurve().decodePoint(publicKey).normalize();
+        this.publicKey = point.getEncoded(true);
+        this.chainCode = chainCode.clone();
+
+        SecretKeySpec key = new SecretKeySpec(this.chainCode, "HmacSHA512");
+        this.hmac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA512");
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    /**
+     * Exports the public key and chain code of a BIP32 public key object.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open session.
+     * @param hPublicKey Handle of the BIP32 public key.
+     * @return The public derivation of the key.
+     * @throws PKCS11Exception If the attributes cannot be read.
+     */
+    public static BIP32PublicDerivation export(PKCS11 p11, long hSession, long hPublicKey) throws PKCS11Exception {
+        CK_ATTRIBUTE[] attr = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE),
+            new CK_ATTRIBUTE(PTK_Constants.CKA_BIP32_CHAIN_CODE)
+        };
+        Cryptoki.C_GetAttributeValue(p11, hSession, hPublicKey, attr);
+
+        return new BIP32PublicDerivation(attr[0].getByteArray(), attr[1].getByteArray());
+    }
+
+    /**
+     * @return The compressed public key of the parent.
+     */
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    /**
+     * @return The chain code of the parent.
+     */
+    public byte[] getChainCode() {
+        return chainCode.clone();
+    }
+
+    /**
+     * Derives a child, keeping its chain code to derive further.
+     *
+     * @param index Non-hardened index of the child.
+     * @return The public derivation of the child.
+     */
+    public BIP32PublicDerivation child(long index) {
+        byte[] i = hmac(index);
+        byte[] childChainCode = new byte[CHAIN_CODE_LENGTH];
+        System.arraycopy(i, 32, childChainCode, 0, CHAIN_CODE_LENGTH);
+        return new BIP32PublicDerivation(validChildPoint(index, i).getEncoded(true), childChainCode);
+    }
+
+    /**
+     * Derives the public key of a child.
+     *
+     * @param index Non-hardened index of the child.
+     * @return The compressed public key of the child.
+     * @throws IllegalArgumentException If the index is hardened, or if the
+     * child is invalid, in which case BIP32 proceeds with the next index.
+     */
+    public byte[] derivePublicKey(long index) {
+        return validChildPoint(index, hmac(index)).getEncoded(true);
+    }
+
+    /**
+     * Derives the public keys of the children <code>from</code> (included) to
+     * <code>to</code> (excluded), in parallel.
+     * <p>
+     * An index whose child is invalid, which happens with a probability
+     * lower than 2^-127, does not abort the range: its key is left as zero
+     * bytes, which no compressed public key starts with, so that every key
+     * stays at the position of its index.
+     *
+     * @param from First index.
+     * @param to Index after the last child.
+     * @return The compressed public keys, one after the other in index order.
+     */
+    public byte[] deriveRange(long from, long to) {
+        checkRange(from, to);
+        int count = (int) (to - from);
+        if ((long) count * PUBLIC_KEY_LENGTH > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Range too large to be held in memory: " + from + ".." + to);
+        }
+
+        byte[] keys = new byte[count * PUBLIC_KEY_LENGTH];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            long index = from + i;
+            ECPoint child = childPoint(hmac(index));
+            if (child != null) {
+                System.arraycopy(child.getEncoded(true), 0, keys, i * PUBLIC_KEY_LENGTH, PUBLIC_KEY_LENGTH);
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * Derives the public keys of the children <code>from</code> (included) to
+     * <code>to</code> (excluded) and writes them to a stream, in the layout of
+     * {@link BIP32BulkDerivation}. The children are computed in parallel, one
+     * block at a time. Invalid children are written as zero bytes, as
+     * returned by {@link #deriveRange(long, long)}.
+     *
+     * @param from First index.
+     * @param to Index after the last child.
+     * @param out Where the public keys are written; not closed.
+     * @return The number of public keys written.
+     * @throws IOException If the output cannot be written.
+     */
+    public long deriveRange(long from, long to, OutputStream out) throws IOException {
+        checkRange(from, to);
+        for (long start = from; start < to; start += BLOCK_SIZE) {
+            out.write(deriveRange(start, Math.min(start + BLOCK_SIZE, to)));
+        }
+        out.flush();
+        return to - from;
+    }
+
+    /* I = HMAC-SHA512(chain code, serP(K) || ser32(i)) */
+    private byte[] hmac(long index) {
+        if (index < 0 || index >= PTK_Constants.CKF_BIP32_HARDENED) {
+            throw new IllegalArgumentException("Hardened or invalid index cannot be derived from a public key: " + index);
+        }
+        Mac mac = hmac.get();
+        mac.update(publicKey);
+        mac.update((byte) (index >>> 24));
+        mac.update((byte) (index >>> 16));
+        mac.update((byte) (index >>> 8));
+        mac.update((byte) index);
+        return mac.doFinal();
+    }
+
+    private ECPoint validChildPoint(long index, byte[] i) {
+        ECPoint child = childPoint(i);
+        if (child == null) {
+            throw new IllegalArgumentException("Child " + index + " is invalid, proceed with the next index");
+        }
+        return child;
+    }
+
+    /* K_i = point(parse256(I_L)) + K, or null if I_L >= n or K_i is the point at infinity */
+    ECPoint childPoint(byte[] i) {
+        BigInteger tweak = new BigInteger(1, Arrays.copyOf(i, 32));
+        if (tweak.compareTo(SECP256K1.getN()) >= 0) {
+            return null;
+        }
+        ECPoint child = MULTIPLIER.multiply(SECP256K1.getG(), tweak).add(point).normalize();
+        return child.isInfinity() ? null : child;
+    }
+
+    private static void checkRange(long from, long to) {
+        if (from < 0 || to > PTK_Constants.CKF_BIP32_HARDENED || from > to) {
+            throw new IllegalArgumentException("Invalid non-hardened index range: " + from + ".." + to);
+        }
+    }
+}
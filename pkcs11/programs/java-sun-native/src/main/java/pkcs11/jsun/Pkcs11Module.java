@@ -0,0 +1,207 @@
+package pkcs11.jsun;
+
+import java.nio.charset.StandardCharsets;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * The Cryptoki library of the process, loaded once and shared by every
+ * program and helper.
+ * <p>
+ * The module is configured with system properties, or the matching
+ * environment variables:
+ * <li>pkcs11.library (PKCS11_LIBRARY) path of the Cryptoki library, required
+ * <li>pkcs11.slot (PKCS11_SLOT) slot to work on, default 0
+ * <li>pkcs11.pin (PKCS11_PIN) user PIN, default none (no login)
+ * <li>pkcs11.sessions (PKCS11_SESSIONS) size of the shared session pool, default 4
+ * <li>pkcs11.warmup (PKCS11_WARMUP) true to warm the module up when it is loaded
+ * <li>pkcs11.warmup.labels (PKCS11_WARMUP_LABELS) comma-separated labels of
+ * the keys resolved by the warm-up
+ * <p>
+ * <code>C_Finalize</code> is called once, by a shutdown hook, when the JVM
+ * exits.
+ * <p>
+ * Usage :
+ * <pre>
+ * Pkcs11Module module = Pkcs11Module.getInstance();
+ * try (SessionPool.Lease lease = module.pool().lease()) { ... }
+ * </pre>
+ */
+public class Pkcs11Module {
+
+    /**
+     * Default size of the shared session pool.
+     */
+    public static final int DEFAULT_SESSIONS = 4;
+
+    /* bytes drawn from the token to check it answers */
+    private static final int WARMUP_RANDOM_LENGTH = 16;
+
+    private static Pkcs11Module instance;
+
+    private final String library;
+    private final PKCS11 p11;
+    private final long slotId;
+    private final char[] pin;
+    private final int sessions;
+    private final HandleCache handles = new HandleCache();
+    private SessionPool pool;
+    private volatile boolean ready = false;
+
+    private Pkcs11Module(String library, long slotId, char[] pin, int sessions) throws Exception {
+        this.library = Utils.setupLibrary(library);
+        this.p11 = PKCS11.getInstance(this.library, "C_GetFunctionList", null, false);
+        this.slotId = slotId;
+        this.pin = pin;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Returns the module of the process, loading and configuring it the
+     * first time.
+     *
+     * @return The module.
+     * @throws Exception If the library is not configured or cannot be loaded,
+     * or if the configured warm-up fails.
+     */
+    public static synchronized Pkcs11Module getInstance() throws Exception {
+        if (instance == null) {
+            String library = setting("pkcs11.library", "PKCS11_LIBRARY", null);
+            if (library == null) {
+                throw new Exception("Cryptoki library not configured, set pkcs11.library or PKCS11_LIBRARY.");
+            }
+            String pin = setting("pkcs11.pin", "PKCS11_PIN", null);
+
+            Pkcs11Module module = new Pkcs11Module(library,
+                    Long.parseLong(setting("pkcs11.slot", "PKCS11_SLOT", "0")),
+                    pin == null ? null : pin.toCharArray(),
+                    Integer.parseInt(setting("pkcs11.sessions", "PKCS11_SESSIONS", Integer.toString(DEFAULT_SESSIONS))));
+            Runtime.getRuntime().addShutdownHook(new Thread(module::shutdown, "pkcs11-shutdown"));
+            instance = module;
+
+            if (Boolean.parseBoolean(setting("pkcs11.warmup", "PKCS11_WARMUP", "false"))) {
+                String labels = setting("pkcs11.warmup.labels", "PKCS11_WARMUP_LABELS", "");
+                module.warmUp(labels.isEmpty() ? new String[0] : labels.split(","));
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Reads a setting from a system property, or else from an environment
+     * variable.
+     *
+     * @param property Name of the system property.
+     * @param env Name of the environment variable.
+     * @param defaultValue Value if neither is set.
+     * @return The value of the setting.
+     */
+    public static String setting(String property, String env, String defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            value = System.getenv(env);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @return The PKCS#11 wrapper instance of the library.
+     */
+    public PKCS11 getP11() {
+        return p11;
+    }
+
+    /**
+     * @return The path of the Cryptoki library.
+     */
+    public String getLibrary() {
+        return library;
+    }
+
+    /**
+     * @return The configured slot.
+     */
+    public long getSlotId() {
+        return slotId;
+    }
+
+    /**
+     * @return The handle cache of the configured slot.
+     */
+    public HandleCache handles() {
+        return handles;
+    }
+
+    /**
+     * Returns the session pool of the configured slot, opening it the first
+     * time.
+     *
+     * @return The shared session pool.
+     * @throws PKCS11Exception If the sessions cannot be opened or the login fails.
+     */
+    public synchronized SessionPool pool() throws PKCS11Exception {
+        if (pool == null) {
+            pool = newSessionPool(sessions);
+        }
+        return pool;
+    }
+
+    /**
+     * Opens a session pool of another size on the configured slot. The caller
+     * closes it.
+     *
+     * @param size Number of sessions.
+     * @return The new session pool.
+     * @throws PKCS11Exception If the sessions cannot be opened or the login fails.
+     */
+    public SessionPool newSessionPool(int size) throws PKCS11Exception {
+        return new SessionPool(p11, slotId, pin, size);
+    }
+
+    /**
+     * Opens the shared session pool, resolves the handles of the given keys
+     * into the handle cache and draws a few random bytes to check that the
+     * token answers, so that the first request does not pay for any of it.
+     *
+     * @param labels Labels of the keys to resolve.
+     * @throws Exception If a session cannot be opened, a key is not found or
+     * the token does not answer.
+     */
+    public void warmUp(String... labels) throws Exception {
+        SessionPool sessionPool = pool();
+        try (SessionPool.Lease lease = sessionPool.lease()) {
+            for (String label : labels) {
+                CK_ATTRIBUTE[] template = {
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_LABEL, label.trim().getBytes(StandardCharsets.UTF_8))
+                };
+                ManageObjects.find(p11, lease.handle(), template, handles);
+            }
+
+            byte[] random = new byte[WARMUP_RANDOM_LENGTH];
+            Cryptoki.C_GenerateRandom(p11, lease.handle(), random);
+        }
+        ready = true;
+    }
+
+    /**
+     * @return true once the warm-up succeeded.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /* close the sessions and finalize the library, once, when the JVM exits */
+    private synchronized void shutdown() {
+        if (pool != null) {
+            pool.close();
+        }
+        try {
+            Cryptoki.C_Finalize(p11, null);
+        } catch (PKCS11Exception ex) {
+            /* already finalized */
+        }
+    }
+}
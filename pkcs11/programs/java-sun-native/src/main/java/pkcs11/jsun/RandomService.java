@@ -0,0 +1,306 @@
+package pkcs11.jsun;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Random bytes of the token, fetched ahead of time.
+ * <p>
+ * A background thread fills a buffer with large <code>C_GenerateRandom</code>
+ * blocks whenever it drops below a low-water mark, up to a high-water mark.
+ * Callers take their nonces, IVs or key material from the buffer without a
+ * native call and without locking: each block is a queue entry whose bytes are
+ * claimed by moving an atomic offset, so no byte is handed out twice. Bytes
+ * are wiped from the buffer once handed out. When the buffer is empty, the
+ * request is served by a <code>C_GenerateRandom</code> on the calling thread.
+ * <p>
+ * Optionally, a JVM DRBG is reseeded with token bytes after every refill, for
+ * callers that need a {@link SecureRandom}.
+ * <p>
+ * Usage :
+ * <pre>
+ * RandomService random = new RandomService(pool, 64 * 1024, 256 * 1024, 1024 * 1024);
+ * byte[] iv = random.nextBytes(12);
+ * </pre>
+ */
+public class RandomService implements AutoCloseable {
+
+    /**
+     * Default size of a <code>C_GenerateRandom</code> block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Default number of buffered bytes under which a refill starts.
+     */
+    public static final long DEFAULT_LOW_WATER = 256 * 1024;
+
+    /**
+     * Default number of buffered bytes a refill stops at.
+     */
+    public static final long DEFAULT_HIGH_WATER = 1024 * 1024;
+
+    /**
+     * Number of token bytes a DRBG is reseeded with after every refill.
+     */
+    public static final int SEED_LENGTH = 32;
+
+    /* Cryptoki return value for a token without random number generator */
+    static final long CKR_RANDOM_NO_RNG = 0x00000121L;
+
+    private final SessionPool pool;
+    private final int blockSize;
+    private final long lowWater;
+    private final long highWater;
+    private final Queue<Block> blocks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ExecutorService refiller;
+    private volatile SecureRandom drbg;
+    private volatile Exception lastError;
+
+    /**
+     * Creates a service with the default block size and water marks.
+     *
+     * @param pool Sessions of the token the bytes are drawn from.
+     * @throws PKCS11Exception If the token has no random number generator.
+     */
+    public RandomService(SessionPool pool) throws PKCS11Exception {
+        this(pool, DEFAULT_BLOCK_SIZE, DEFAULT_LOW_WATER, DEFAULT_HIGH_WATER);
+    }
+
+    /**
+     * Checks that the token has a random number generator and starts filling
+     * the buffer.
+     *
+     * @param pool Sessions of the token the bytes are drawn from.
+     * @param blockSize Size of a <code>C_GenerateRandom</code> block.
+     * @param lowWater Number of buffered bytes under which a refill starts.
+     * @param highWater Number of buffered bytes a refill stops at.
+     * @throws PKCS11Exception If the token has no random number generator.
+     */
+    public RandomService(SessionPool pool, int blockSize, long lowWater, long highWater) throws PKCS11Exception {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        if (lowWater < 0 || highWater < lowWater) {
+            throw new IllegalArgumentException("Invalid water marks: " + lowWater + ", " + highWater);
+        }
+        CK_TOKEN_INFO info = Cryptoki.C_GetTokenInfo(pool.getP11(), pool.getSlotId());
+        if ((info.flags & PKCS11Constants.CKF_RNG) == 0) {
+            throw new PKCS11Exception(CKR_RANDOM_NO_RNG, null);
+        }
+
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.lowWater = lowWater;
+        this.highWater = highWater;
+        this.refiller = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "pkcs11-random-" + pool.getSlotId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        triggerRefill();
+    }
+
+    /**
+     * Reseeds a DRBG with token bytes after every refill, starting with the
+     * next one.
+     *
+     * @param drbg The generator to reseed, e.g. <code>SecureRandom.getInstance("DRBG")</code>,
+     * or null to stop reseeding.
+     */
+    public void reseed(SecureRandom drbg) {
+        this.drbg = drbg;
+    }
+
+    /**
+     * @param length Number of bytes.
+     * @return Random bytes of the token.
+     * @throws PKCS11Exception If the buffer is empty and the token cannot generate them.
+     * @throws InterruptedException If the thread is interrupted while waiting for a session.
+     */
+    public byte[] nextBytes(int length) throws PKCS11Exception, InterruptedException {
+        byte[] bytes = new byte[length];
+        nextBytes(bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Fills a whole array with random bytes of the token.
+     *
+     * @param bytes The array.
+     * @throws PKCS11Exception If the buffer is empty and the token cannot generate them.
+     * @throws InterruptedException If the thread is interrupted while waiting for a session.
+     */
+    public void nextBytes(byte[] bytes) throws PKCS11Exception, InterruptedException {
+        nextBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Fills part of an array with random bytes of the token.
+     *
+     * @param bytes The array.
+     * @param offset Where to start in the array.
+     * @param length Number of bytes.
+     * @throws PKCS11Exception If the buffer is empty and the token cannot generate them.
+     * @throws InterruptedException If the thread is interrupted while waiting for a session.
+     */
+    public void nextBytes(byte[] bytes, int offset, int length) throws PKCS11Exception, InterruptedException {
+        int filled = 0;
+        while (filled < length) {
+            Block block = blocks.peek();
+            if (block == null) {
+                break;
+            }
+            int count = block.claim(bytes, offset + filled, length - filled);
+            if (count == 0) {
+                /* used up; whoever gets here first drops it */
+                blocks.remove(block);
+            } else {
+                buffered.addAndGet(-count);
+                filled += count;
+            }
+        }
+
+        if (buffered.get() < lowWater) {
+            triggerRefill();
+        }
+        if (filled < length) {
+            /* buffer empty: serve the rest on this thread */
+            byte[] rest = generate(length - filled);
+            System.arraycopy(rest, 0, bytes, offset + filled, rest.length);
+            Arrays.fill(rest, (byte) 0);
+        }
+    }
+
+    /**
+     * @return The number of bytes buffered.
+     */
+    public long getBuffered() {
+        return buffered.get();
+    }
+
+    /**
+     * @return The error of the last refill that failed, or null.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Stops the refills and wipes the buffer. The session pool is left open.
+     */
+    @Override
+    public void close() {
+        refiller.shutdownNow();
+        try {
+            refiller.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        Block block;
+        while ((block = blocks.poll()) != null) {
+            block.discard();
+        }
+        buffered.set(0);
+    }
+
+    private void triggerRefill() {
+        if (refilling.compareAndSet(false, true)) {
+            try {
+                refiller.execute(this::refill);
+            } catch (RuntimeException ex) {
+                /* closed */
+                refilling.set(false);
+            }
+        }
+    }
+
+    /* fetch blocks until the high-water mark, then reseed the DRBG */
+    private void refill() {
+        try {
+            while (buffered.get() < highWater && !Thread.currentThread().isInterrupted()) {
+                byte[] data = generate(blockSize);
+                blocks.add(new Block(data));
+                buffered.addAndGet(data.length);
+            }
+
+            SecureRandom random = drbg;
+            if (random != null) {
+                byte[] seed = generate(SEED_LENGTH);
+                random.setSeed(seed);
+                Arrays.fill(seed, (byte) 0);
+            }
+            lastError = null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            /* callers fall back to the token, the next one below low water tries again */
+            lastError = ex;
+        } finally {
+            refilling.set(false);
+        }
+    }
+
+    private byte[] generate(int length) throws PKCS11Exception, InterruptedException {
+        byte[] data = new byte[length];
+        try (SessionPool.Lease lease = pool.lease()) {
+            try {
+                Cryptoki.C_GenerateRandom(pool.getP11(), lease.handle(), data);
+            } catch (PKCS11Exception ex) {
+                lease.check(ex);
+                throw ex;
+            }
+        }
+        return data;
+    }
+
+    /* one C_GenerateRandom block, handed out from the start */
+    private static final class Block {
+
+        private final byte[] data;
+        private final AtomicInteger offset = new AtomicInteger();
+
+        Block(byte[] data) {
+            this.data = data;
+        }
+
+        /* copy up to length unclaimed bytes, wiping them; 0 once used up */
+        int claim(byte[] bytes, int to, int length) {
+            /* checked first, so that callers racing on a used-up block do not overflow the offset */
+            if (offset.get() >= data.length) {
+                return 0;
+            }
+            int start = offset.getAndAdd(length);
+            if (start >= data.length) {
+                return 0;
+            }
+            int count = Math.min(length, data.length - start);
+            System.arraycopy(data, start, bytes, to, count);
+            Arrays.fill(data, start, start + count, (byte) 0);
+            return count;
+        }
+
+        /* claim and wipe the bytes left; those already claimed are wiped by their claimer */
+        void discard() {
+            int start = offset.getAndSet(data.length);
+            if (start < data.length) {
+                Arrays.fill(data, start, data.length, (byte) 0);
+            }
+        }
+    }
+}
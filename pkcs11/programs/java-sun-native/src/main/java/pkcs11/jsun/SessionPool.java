@@ -0,0 +1,364 @@
+package pkcs11.jsun;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import sun.security.pkcs11.wrapper.CK_SESSION_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * A pool of logged-in PKCS#11 sessions opened on a single slot.
+ * <p>
+ * The pool opens all of its sessions up front and logs the user in once, so
+ * that callers do not pay for <code>C_OpenSession</code>/<code>C_Login</code>
+ * on every request. Sessions are leased to one thread at a time and checked
+ * with <code>C_GetSessionInfo</code> before being handed out; a session that is
+ * no longer valid is closed and replaced by a fresh one. When no replacement
+ * can be opened, e.g. while the token is unreachable, the pool counts the
+ * session as missing and opens it again on a later lease.
+ * <p>
+ * Usage :
+ * <pre>
+ * try (SessionPool.Lease lease = pool.lease()) {
+ *     Cryptography.encrypt(pool.getP11(), lease.handle(), mech, hKey, plaintext, ciphertext);
+ * }
+ * </pre>
+ */
+public class SessionPool implements AutoCloseable {
+
+    /* Cryptoki return values that mean the session itself is gone */
+    static final long CKR_SESSION_CLOSED = 0x000000B0L;
+    static final long CKR_SESSION_HANDLE_INVALID = 0x000000B3L;
+    static final long CKR_DEVICE_REMOVED = 0x00000032L;
+    static final long CKR_TOKEN_NOT_PRESENT = 0x000000E0L;
+
+    private final PKCS11 p11;
+    private final long slotId;
+    private final char[] pin;
+    private final int size;
+
+    /* the idle sessions, the count of missing ones and the closed flag change together */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<Long> idle;
+    private int missing = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens and logs in a pool of read/write sessions on a slot.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param slotId The slot the sessions are opened on.
+     * @param pin User PIN, or null if the token does not require a login.
+     * @param size Number of sessions to keep open.
+     * @throws PKCS11Exception If a session cannot be opened or the login fails.
+     */
+    public SessionPool(PKCS11 p11, long slotId, char[] pin, int size) throws PKCS11Exception {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        this.p11 = p11;
+        this.slotId = slotId;
+        this.pin = pin == null ? null : pin.clone();
+        this.size = size;
+        this.idle = new ArrayDeque<>(size);
+
+        try {
+            for (int i = 0; i < size; ++i) {
+                idle.add(openSession());
+            }
+        } catch (PKCS11Exception ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Leases a session, waiting until one is available.
+     *
+     * @return The lease, to be closed once the caller is done with the session.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @throws PKCS11Exception If a stale or missing session cannot be replaced.
+     */
+    public Lease lease() throws InterruptedException, PKCS11Exception {
+        return new Lease(acquire(false, 0));
+    }
+
+    /**
+     * Leases a session, waiting at most the given time for one to be available.
+     *
+     * @param timeout How long to wait.
+     * @param unit Unit of the timeout.
+     * @return The lease, or null if no session became available in time.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     * @throws PKCS11Exception If a stale or missing session cannot be replaced.
+     */
+    public Lease lease(long timeout, TimeUnit unit) throws InterruptedException, PKCS11Exception {
+        Long hSession = acquire(true, unit.toNanos(timeout));
+        return hSession == null ? null : new Lease(hSession);
+    }
+
+    /**
+     * @return The PKCS#11 wrapper instance the sessions belong to.
+     */
+    public PKCS11 getP11() {
+        return p11;
+    }
+
+    /**
+     * @return The slot the sessions are opened on.
+     */
+    public long getSlotId() {
+        return slotId;
+    }
+
+    /**
+     * @return The number of sessions managed by the pool.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of sessions currently waiting to be leased.
+     */
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of sessions that could not be reopened yet.
+     */
+    public int getMissingCount() {
+        lock.lock();
+        try {
+            return missing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes every idle session. Sessions still leased are closed when their
+     * lease is released; threads waiting for a lease fail.
+     */
+    @Override
+    public void close() {
+        List<Long> sessions;
+        lock.lock();
+        try {
+            closed = true;
+            sessions = new ArrayList<>(idle);
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (long hSession : sessions) {
+            closeQuietly(hSession);
+        }
+    }
+
+    /**
+     * Tells whether an exception means the session it was raised on can no
+     * longer be used.
+     *
+     * @param ex The exception raised by a Cryptoki call.
+     * @return true if the session should be discarded.
+     */
+    static boolean isSessionLost(PKCS11Exception ex) {
+        long rv = ex.getErrorCode();
+        return rv == CKR_SESSION_CLOSED
+                || rv == CKR_SESSION_HANDLE_INVALID
+                || rv == CKR_DEVICE_REMOVED
+                || rv == CKR_TOKEN_NOT_PRESENT;
+    }
+
+    private long openSession() throws PKCS11Exception {
+        long hSession = Cryptoki.C_OpenSession(p11, slotId,
+                PKCS11Constants.CKF_SERIAL_SESSION | PKCS11Constants.CKF_RW_SESSION, null, null);
+
+        if (pin != null) {
+            try {
+                /* the login state is shared by all the sessions of the application */
+                Cryptoki.C_Login(p11, hSession, PKCS11Constants.CKU_USER, pin);
+            } catch (PKCS11Exception ex) {
+                if (ex.getErrorCode() != PKCS11Exception.CKR_USER_ALREADY_LOGGED_IN) {
+                    closeQuietly(hSession);
+                    throw ex;
+                }
+            }
+        }
+        return hSession;
+    }
+
+    /* an idle session, or a missing one reopened, waiting for either if needed */
+    private Long acquire(boolean timed, long timeoutNanos) throws InterruptedException, PKCS11Exception {
+        long remaining = timeoutNanos;
+        Long hSession;
+        lock.lock();
+        try {
+            while (true) {
+                checkOpen();
+                hSession = idle.pollFirst();
+                if (hSession != null) {
+                    break;
+                }
+                if (missing > 0) {
+                    --missing;
+                    break;
+                }
+                if (!timed) {
+                    available.await();
+                } else if (remaining <= 0) {
+                    return null;
+                } else {
+                    remaining = available.awaitNanos(remaining);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        /* the token is only called once the lock is released */
+        return hSession != null ? validate(hSession) : reopen();
+    }
+
+    /* make sure a session is still usable, replacing it otherwise */
+    private long validate(long hSession) throws PKCS11Exception {
+        try {
+            CK_SESSION_INFO info = Cryptoki.C_GetSessionInfo(p11, hSession);
+            if (pin == null || info.state == PKCS11Constants.CKS_RW_USER_FUNCTIONS) {
+                return hSession;
+            }
+        } catch (PKCS11Exception ex) {
+            /* whatever the reason, a session that cannot be checked is not handed out */
+        }
+
+        closeQuietly(hSession);
+        return reopen();
+    }
+
+    /* open a session in place of one closed or missing, counting it missing on failure */
+    private long reopen() throws PKCS11Exception {
+        try {
+            return openSession();
+        } catch (PKCS11Exception ex) {
+            putBack(null);
+            throw ex;
+        }
+    }
+
+    private void release(long hSession, boolean broken) {
+        Long released = hSession;
+        if (broken) {
+            closeQuietly(hSession);
+            try {
+                released = openSession();
+            } catch (PKCS11Exception ex) {
+                /* never queue a closed handle, a later lease reopens it */
+                released = null;
+            }
+        }
+        putBack(released);
+    }
+
+    /* queue a session, or count it missing if null, and wake up a waiting lease */
+    private void putBack(Long hSession) {
+        boolean queued = false;
+        lock.lock();
+        try {
+            /* checked under the lock, so that close() cannot miss the session */
+            if (!closed) {
+                if (hSession != null) {
+                    idle.addLast(hSession);
+                } else {
+                    ++missing;
+                }
+                available.signal();
+                queued = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!queued && hSession != null) {
+            closeQuietly(hSession);
+        }
+    }
+
+    private void closeQuietly(long hSession) {
+        try {
+            Cryptoki.C_CloseSession(p11, hSession);
+        } catch (PKCS11Exception ex) {
+            /* nothing left to release */
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Session pool of slot " + slotId + " is closed");
+        }
+    }
+
+    /**
+     * A session leased from the pool. Closing the lease gives the session back.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final long hSession;
+        private boolean broken = false;
+        private boolean released = false;
+
+        private Lease(long hSession) {
+            this.hSession = hSession;
+        }
+
+        /**
+         * @return Handle of the leased session.
+         */
+        public long handle() {
+            return hSession;
+        }
+
+        /**
+         * Flags the session as unusable so that it is replaced instead of being
+         * recycled, e.g. after a call failed with an unexpected error and left
+         * an operation active on it.
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        /**
+         * Flags the session as unusable if the exception says it was lost.
+         *
+         * @param ex The exception raised by a Cryptoki call made on the session.
+         * @return true if the session was lost, and must not be used any more.
+         */
+        public boolean check(PKCS11Exception ex) {
+            if (isSessionLost(ex)) {
+                broken = true;
+            }
+            return broken;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(hSession, broken);
+            }
+        }
+    }
+}
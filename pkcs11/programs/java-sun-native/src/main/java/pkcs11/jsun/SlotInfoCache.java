@@ -0,0 +1,229 @@
+package pkcs11.jsun;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import sun.security.pkcs11.wrapper.CK_SLOT_INFO;
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Slot and token information of a module, kept up to date in the background.
+ * <p>
+ * <code>C_GetSlotInfo</code> and <code>C_GetTokenInfo</code> can take
+ * milliseconds on a network HSM. The cache reads every slot once when it is
+ * created, then again on a background thread at a fixed interval. Callers read
+ * an immutable {@link Snapshot} of the last refresh, never the device.
+ * <p>
+ * The JDK wrapper does not expose <code>C_WaitForSlotEvent</code>, so changes
+ * are picked up by the periodic refresh; {@link #refresh()} forces one, e.g.
+ * after a call failed with <code>CKR_TOKEN_NOT_PRESENT</code>. A one-off
+ * read, without a cache or background thread, is done by {@link #read(PKCS11)}.
+ * <p>
+ * Usage :
+ * <pre>
+ * SlotInfoCache cache = new SlotInfoCache(p11, 5000);
+ * if (cache.snapshot().isTokenPresent(slotId)) { ... }
+ * </pre>
+ */
+public class SlotInfoCache implements AutoCloseable {
+
+    /**
+     * Default interval between two refreshes, in milliseconds.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL = 5000;
+
+    private final PKCS11 p11;
+    private final ScheduledExecutorService refresher;
+    private volatile Snapshot snapshot;
+    private volatile PKCS11Exception lastError;
+
+    /**
+     * Creates a cache refreshed at the default interval.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @throws PKCS11Exception If the first read fails.
+     */
+    public SlotInfoCache(PKCS11 p11) throws PKCS11Exception {
+        this(p11, DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * Reads every slot and starts the background refresh.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param refreshInterval Interval between two refreshes, in milliseconds.
+     * @throws PKCS11Exception If the first read fails.
+     */
+    public SlotInfoCache(PKCS11 p11, long refreshInterval) throws PKCS11Exception {
+        if (refreshInterval <= 0) {
+            throw new IllegalArgumentException("Refresh interval must be positive: " + refreshInterval);
+        }
+        this.p11 = p11;
+        this.snapshot = load(p11);
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pkcs11-slot-info");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refreshQuietly, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads every slot once, on the calling thread, without starting a
+     * background refresh.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @return The slot and token information.
+     * @throws PKCS11Exception If the slots cannot be read.
+     */
+    public static Snapshot read(PKCS11 p11) throws PKCS11Exception {
+        return load(p11);
+    }
+
+    /**
+     * @return The information read by the last successful refresh.
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Reads every slot now, on the calling thread.
+     *
+     * @return The new snapshot.
+     * @throws PKCS11Exception If the slots cannot be read; the previous
+     * snapshot is kept.
+     */
+    public Snapshot refresh() throws PKCS11Exception {
+        Snapshot fresh = load(p11);
+        snapshot = fresh;
+        lastError = null;
+        return fresh;
+    }
+
+    /**
+     * @return The error of the last background refresh, or null if it succeeded.
+     */
+    public PKCS11Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Stops the background refresh.
+     */
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (PKCS11Exception ex) {
+            /* keep serving the previous snapshot */
+            lastError = ex;
+        }
+    }
+
+    private static Snapshot load(PKCS11 p11) throws PKCS11Exception {
+        Map<Long, CK_SLOT_INFO> slots = new LinkedHashMap<>();
+        Map<Long, CK_TOKEN_INFO> tokens = new LinkedHashMap<>();
+
+        for (long slotId : Cryptoki.C_GetSlotList(p11, false)) {
+            CK_SLOT_INFO slotInfo = Cryptoki.C_GetSlotInfo(p11, slotId);
+            slots.put(slotId, slotInfo);
+
+            if ((slotInfo.flags & PKCS11Constants.CKF_TOKEN_PRESENT) != 0) {
+                try {
+                    tokens.put(slotId, Cryptoki.C_GetTokenInfo(p11, slotId));
+                } catch (PKCS11Exception ex) {
+                    /* removed between the two calls */
+                    if (!SessionPool.isSessionLost(ex)) {
+                        throw ex;
+                    }
+                }
+            }
+        }
+        return new Snapshot(System.currentTimeMillis(), slots, tokens);
+    }
+
+    /**
+     * The slot and token information read by one refresh.
+     */
+    public static class Snapshot {
+
+        private final long timestamp;
+        private final Map<Long, CK_SLOT_INFO> slots;
+        private final Map<Long, CK_TOKEN_INFO> tokens;
+
+        Snapshot(long timestamp, Map<Long, CK_SLOT_INFO> slots, Map<Long, CK_TOKEN_INFO> tokens) {
+            this.timestamp = timestamp;
+            this.slots = Collections.unmodifiableMap(slots);
+            this.tokens = Collections.unmodifiableMap(tokens);
+        }
+
+        /**
+         * @return When the information was read, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return The identifiers of every slot, with or without a token.
+         */
+        public Iterable<Long> getSlots() {
+            return slots.keySet();
+        }
+
+        /**
+         * @param slotId The slot.
+         * @return The slot information, or null if the slot is unknown.
+         */
+        public CK_SLOT_INFO getSlotInfo(long slotId) {
+            return slots.get(slotId);
+        }
+
+        /**
+         * @param slotId The slot.
+         * @return The token information, or null if no token is present.
+         */
+        public CK_TOKEN_INFO getTokenInfo(long slotId) {
+            return tokens.get(slotId);
+        }
+
+        /**
+         * @param slotId The slot.
+         * @return true if a token was present in the slot.
+         */
+        public boolean isTokenPresent(long slotId) {
+            return tokens.containsKey(slotId);
+        }
+
+        /**
+         * @param slotId The slot.
+         * @return The number of sessions open on the token, or -1 if no token is present.
+         */
+        public long getSessionCount(long slotId) {
+            CK_TOKEN_INFO info = tokens.get(slotId);
+            return info == null ? -1 : info.ulSessionCount;
+        }
+
+        /**
+         * @param slotId The slot.
+         * @return The number of read/write sessions open on the token, or -1 if no token is present.
+         */
+        public long getRwSessionCount(long slotId) {
+            CK_TOKEN_INFO info = tokens.get(slotId);
+            return info == null ? -1 : info.ulRwSessionCount;
+        }
+    }
+}
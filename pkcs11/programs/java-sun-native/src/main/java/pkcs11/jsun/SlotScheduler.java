@@ -0,0 +1,295 @@
+package pkcs11.jsun;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Spreads operations over several slots holding the same keys, e.g. the
+ * partitions of a network HSM.
+ * <p>
+ * Each operation is routed to the healthy slot with the lowest score: the
+ * number of operations in flight on the slot, optionally weighted by its
+ * recent latency. A slot whose device fails is taken out of the rotation for
+ * a while and then tried again. The failed operation is retried on another
+ * slot, so operations given to the scheduler must be safe to run twice.
+ * <p>
+ * Object handles differ from one token to another: operations receive the slot
+ * they run on so they can pick the right handle, e.g. from a
+ * {@link HandleCache} per slot.
+ * <p>
+ * Given a {@link MechanismRegistry}, operations needing a mechanism are only
+ * routed to the slots supporting it.
+ */
+public class SlotScheduler implements AutoCloseable {
+
+    /**
+     * Default time a failed slot is kept out of the rotation, in milliseconds.
+     */
+    public static final long DEFAULT_RETRY_DELAY = 5000;
+
+    /* Cryptoki return values meaning the slot itself is in trouble */
+    static final long CKR_DEVICE_ERROR = 0x00000030L;
+    static final long CKR_DEVICE_MEMORY = 0x00000031L;
+
+    /* weight of the last sample in the latency moving average */
+    private static final double LATENCY_ALPHA = 0.2;
+
+    /**
+     * How the next slot is chosen.
+     */
+    public enum Policy {
+        /** the slot with the fewest operations in flight */
+        LEAST_OUTSTANDING,
+        /** the slot with the lowest operations in flight times average latency */
+        LATENCY_WEIGHTED
+    }
+
+    /**
+     * An operation run on a session of the slot chosen by the scheduler.
+     *
+     * @param <T> Type of the result of the operation.
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+
+        /**
+         * @param p11 PKCS#11 wrapper instance of the slot.
+         * @param slotId The slot the operation runs on.
+         * @param hSession Handle to a session leased on the slot.
+         * @return The result of the operation.
+         * @throws Exception If the operation fails.
+         */
+        T run(PKCS11 p11, long slotId, long hSession) throws Exception;
+    }
+
+    private final List<Slot> slots = new ArrayList<>();
+    private final Policy policy;
+    private final long retryDelay;
+    private final MechanismRegistry registry;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a least-outstanding-requests scheduler.
+     *
+     * @param pools One session pool per slot.
+     */
+    public SlotScheduler(List<SessionPool> pools) {
+        this(pools, Policy.LEAST_OUTSTANDING, DEFAULT_RETRY_DELAY);
+    }
+
+    /**
+     * @param pools One session pool per slot.
+     * @param policy How the next slot is chosen.
+     * @param retryDelay Time a failed slot is kept out of the rotation, in milliseconds.
+     */
+    public SlotScheduler(List<SessionPool> pools, Policy policy, long retryDelay) {
+        this(pools, policy, retryDelay, null);
+    }
+
+    /**
+     * @param pools One session pool per slot.
+     * @param policy How the next slot is chosen.
+     * @param retryDelay Time a failed slot is kept out of the rotation, in milliseconds.
+     * @param registry Mechanisms supported by the slots, or null to route
+     * every operation to every slot.
+     */
+    public SlotScheduler(List<SessionPool> pools, Policy policy, long retryDelay, MechanismRegistry registry) {
+        if (pools.isEmpty()) {
+            throw new IllegalArgumentException("At least one session pool is required");
+        }
+        for (SessionPool pool : pools) {
+            slots.add(new Slot(pool));
+        }
+        this.policy = policy;
+        this.retryDelay = retryDelay;
+        this.registry = registry;
+    }
+
+    /**
+     * Runs an operation on the best slot available. If the slot's device fails,
+     * the slot is marked unhealthy and the operation is retried on the next
+     * best slot, until every slot was tried once.
+     *
+     * @param <T> Type of the result of the operation.
+     * @param operation The operation to run.
+     * @return The result of the operation.
+     * @throws Exception The error of the operation, or of the last slot tried.
+     */
+    public <T> T execute(Operation<T> operation) throws Exception {
+        return execute(operation, new ArrayList<>());
+    }
+
+    /**
+     * Runs an operation on the best slot supporting a mechanism, as
+     * {@link #execute(Operation)} does. Without a registry every slot is
+     * assumed to support it.
+     *
+     * @param <T> Type of the result of the operation.
+     * @param mechanism The mechanism the operation uses.
+     * @param keySize The key size, in the unit of the mechanism, or 0 not to check it.
+     * @param flags The <code>CKF_</code> usage flags required, or 0 not to check them.
+     * @param operation The operation to run.
+     * @return The result of the operation.
+     * @throws Exception The error of the operation, of the last slot tried,
+     * or CKR_MECHANISM_INVALID if no slot supports the mechanism.
+     */
+    public <T> T execute(long mechanism, long keySize, long flags, Operation<T> operation) throws Exception {
+        List<Slot> unsupported = new ArrayList<>();
+        if (registry != null) {
+            for (Slot slot : slots) {
+                if (!registry.supports(slot.pool.getSlotId(), mechanism, keySize, flags)) {
+                    unsupported.add(slot);
+                }
+            }
+        }
+        if (unsupported.size() == slots.size()) {
+            throw new PKCS11Exception(MechanismRegistry.CKR_MECHANISM_INVALID, null);
+        }
+        return execute(operation, unsupported);
+    }
+
+    /* run on the slots not excluded, retrying on the next one when a slot fails */
+    private <T> T execute(Operation<T> operation, List<Slot> tried) throws Exception {
+        while (true) {
+            Slot slot = choose(tried);
+            tried.add(slot);
+
+            try {
+                return slot.execute(operation);
+            } catch (PKCS11Exception ex) {
+                if (!isSlotFailure(ex)) {
+                    throw ex;
+                }
+                slot.markUnhealthy(retryDelay);
+                if (tried.size() == slots.size()) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The slots currently in the rotation.
+     */
+    public List<Long> getHealthySlots() {
+        List<Long> healthy = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Slot slot : slots) {
+            if (slot.isHealthy(now)) {
+                healthy.add(slot.pool.getSlotId());
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Closes the session pools of every slot.
+     */
+    @Override
+    public void close() {
+        for (Slot slot : slots) {
+            slot.pool.close();
+        }
+    }
+
+    /**
+     * Tells whether an exception means the slot it was raised on should be
+     * taken out of the rotation. CKR_GENERAL_ERROR is left out: tokens also
+     * return it for a bad input, which must not evict a healthy slot.
+     *
+     * @param ex The exception raised by a Cryptoki call.
+     * @return true if the slot failed, rather than the operation.
+     */
+    static boolean isSlotFailure(PKCS11Exception ex) {
+        long rv = ex.getErrorCode();
+        return rv == CKR_DEVICE_ERROR
+                || rv == CKR_DEVICE_MEMORY
+                || rv == SessionPool.CKR_DEVICE_REMOVED
+                || rv == SessionPool.CKR_TOKEN_NOT_PRESENT;
+    }
+
+    /* pick the healthy slot with the lowest score, or the one back soonest if none is healthy */
+    private Slot choose(List<Slot> excluded) {
+        long now = System.currentTimeMillis();
+        int start = Math.floorMod(next.getAndIncrement(), slots.size());
+        Slot best = null;
+        double bestScore = Double.MAX_VALUE;
+        Slot fallback = null;
+
+        for (int i = 0; i < slots.size(); ++i) {
+            /* rotate the starting point so that ties are spread evenly */
+            Slot slot = slots.get((start + i) % slots.size());
+            if (excluded.contains(slot)) {
+                continue;
+            }
+            if (!slot.isHealthy(now)) {
+                if (fallback == null || slot.unhealthyUntil < fallback.unhealthyUntil) {
+                    fallback = slot;
+                }
+                continue;
+            }
+            double score = slot.score(policy);
+            if (score < bestScore) {
+                bestScore = score;
+                best = slot;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    /* routing state of one slot */
+    private static class Slot {
+
+        private final SessionPool pool;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double latencyNanos = 0;
+        private volatile long unhealthyUntil = 0;
+
+        Slot(SessionPool pool) {
+            this.pool = pool;
+        }
+
+        boolean isHealthy(long now) {
+            return now >= unhealthyUntil;
+        }
+
+        void markUnhealthy(long retryDelay) {
+            unhealthyUntil = System.currentTimeMillis() + retryDelay;
+        }
+
+        double score(Policy policy) {
+            double inFlight = outstanding.get() + 1;
+            if (policy == Policy.LATENCY_WEIGHTED) {
+                /* slots never measured yet get a chance first */
+                return inFlight * latencyNanos;
+            }
+            return inFlight;
+        }
+
+        <T> T execute(Operation<T> operation) throws Exception {
+            outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            try (SessionPool.Lease lease = pool.lease()) {
+                try {
+                    T result = operation.run(pool.getP11(), pool.getSlotId(), lease.handle());
+                    record(System.nanoTime() - start);
+                    return result;
+                } catch (PKCS11Exception ex) {
+                    lease.check(ex);
+                    throw ex;
+                }
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        private void record(long elapsed) {
+            double previous = latencyNanos;
+            latencyNanos = previous == 0 ? elapsed : previous + LATENCY_ALPHA * (elapsed - previous);
+        }
+    }
+}
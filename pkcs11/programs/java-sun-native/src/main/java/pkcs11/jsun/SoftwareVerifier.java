@@ -0,0 +1,347 @@
+package pkcs11.jsun;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Verifies signatures in the JVM with public keys read once from a token.
+ * <p>
+ * Verifying a signature only needs the public key, so there is no reason to
+ * spend the token's capacity on it. The first time a public key handle is
+ * used, its attributes (EC parameters and point, or RSA modulus and public
+ * exponent) are read with <code>C_GetAttributeValue</code> and turned into a
+ * JCA {@link PublicKey} that is kept for the later verifications.
+ * <p>
+ * Mechanisms or curves the JVM does not support are verified on the token
+ * with {@link Cryptography#Verify}, as before. Some curves are known to the
+ * JVM but cannot be verified with, e.g. secp256k1 since JDK 16: every EC key
+ * is tried with a dummy signature when it is read, and a key that fails is
+ * remembered as one for the token.
+ * <p>
+ * A cached key is dropped by {@link #invalidate(long)}, or automatically when
+ * the verifier is given the {@link HandleCache} of the token: objects
+ * destroyed through {@link ManageObjects#delete(PKCS11, long, long, HandleCache)}
+ * and stale handles found by
+ * {@link ManageObjects#withHandles(PKCS11, long, HandleCache, HandleCache.Operation, CK_ATTRIBUTE[][])}
+ * are forgotten, so that a reused handle is read again.
+ * <p>
+ * Object handles are only meaningful on one token: use one verifier per
+ * token.
+ */
+public class SoftwareVerifier {
+
+    /* JCA signature algorithms matching the Cryptoki mechanisms */
+    private static final Map<Long, String> ALGORITHMS = new HashMap<>();
+
+    static {
+        ALGORITHMS.put(PKCS11Constants.CKM_ECDSA, "NONEwithECDSAinP1363Format");
+        ALGORITHMS.put(PKCS11Constants.CKM_ECDSA_SHA1, "SHA1withECDSAinP1363Format");
+        ALGORITHMS.put(PKCS11Constants.CKM_ECDSA_SHA224, "SHA224withECDSAinP1363Format");
+        ALGORITHMS.put(PKCS11Constants.CKM_ECDSA_SHA256, "SHA256withECDSAinP1363Format");
+        ALGORITHMS.put(PKCS11Constants.CKM_ECDSA_SHA384, "SHA384withECDSAinP1363Format");
+        ALGORITHMS.put(PKCS11Constants.CKM_ECDSA_SHA512, "SHA512withECDSAinP1363Format");
+        ALGORITHMS.put(PKCS11Constants.CKM_RSA_PKCS, "NONEwithRSA");
+        ALGORITHMS.put(PKCS11Constants.CKM_SHA1_RSA_PKCS, "SHA1withRSA");
+        ALGORITHMS.put(PKCS11Constants.CKM_SHA224_RSA_PKCS, "SHA224withRSA");
+        ALGORITHMS.put(PKCS11Constants.CKM_SHA256_RSA_PKCS, "SHA256withRSA");
+        ALGORITHMS.put(PKCS11Constants.CKM_SHA384_RSA_PKCS, "SHA384withRSA");
+        ALGORITHMS.put(PKCS11Constants.CKM_SHA512_RSA_PKCS, "SHA512withRSA");
+    }
+
+    /* Signature objects are not thread-safe, keep one per thread and algorithm */
+    private static final ThreadLocal<Map<String, Signature>> SIGNATURES = ThreadLocal.withInitial(HashMap::new);
+
+    private final PKCS11 p11;
+    private final Map<Long, PublicKey> keys = new ConcurrentHashMap<>();
+    /* handles of the keys the JVM cannot verify with */
+    private final Set<Long> unsupported = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param p11 PKCS#11 wrapper instance of the token holding the public keys.
+     */
+    public SoftwareVerifier(PKCS11 p11) {
+        this.p11 = p11;
+    }
+
+    /**
+     * Creates a verifier forgetting the keys the handle cache of the token
+     * forgets.
+     *
+     * @param p11 PKCS#11 wrapper instance of the token holding the public keys.
+     * @param handles The handle cache of the token.
+     */
+    public SoftwareVerifier(PKCS11 p11, HandleCache handles) {
+        this(p11);
+        handles.addInvalidationListener(this::invalidate);
+    }
+
+    /**
+     * Returns the public key behind a handle, reading it from the token the
+     * first time.
+     *
+     * @param hSession Handle to an open session, used only on a cache miss.
+     * @param hPublicKey Handle of the public key.
+     * @return The public key.
+     * @throws PKCS11Exception If the key attributes cannot be read.
+     * @throws GeneralSecurityException If the JVM cannot verify with the key.
+     */
+    public PublicKey getPublicKey(long hSession, long hPublicKey) throws PKCS11Exception, GeneralSecurityException {
+        PublicKey key = keys.get(hPublicKey);
+        if (key == null) {
+            if (unsupported.contains(hPublicKey)) {
+                throw new GeneralSecurityException("Key not supported by the JVM");
+            }
+            try {
+                key = readPublicKey(p11, hSession, hPublicKey);
+                checkSupported(key);
+            } catch (GeneralSecurityException ex) {
+                unsupported.add(hPublicKey);
+                throw ex;
+            }
+            keys.put(hPublicKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * Forgets a public key, e.g. once its object was destroyed on the token.
+     *
+     * @param hPublicKey Handle of the public key.
+     */
+    public void invalidate(long hPublicKey) {
+        keys.remove(hPublicKey);
+        unsupported.remove(hPublicKey);
+    }
+
+    /**
+     * Verifies a signature in the JVM.
+     *
+     * @param hSession Handle to an open session, used to read the key on a cache
+     * miss or to verify on the token when the JVM cannot.
+     * @param verifyMech The signature mechanism (e.g., ECDSA SHA256).
+     * @param hPublicKey Handle of the public key to verify with.
+     * @param data The signed data, or hash for the raw mechanisms.
+     * @param signature The signature, in the format produced by the token.
+     * @return true if the signature is valid.
+     * @throws PKCS11Exception If the key cannot be read from the token.
+     */
+    public boolean verify(long hSession, CK_MECHANISM verifyMech, long hPublicKey,
+            byte[] data, byte[] signature) throws PKCS11Exception {
+
+        String algorithm = ALGORITHMS.get(verifyMech.mechanism);
+        if (algorithm != null) {
+            try {
+                PublicKey key = getPublicKey(hSession, hPublicKey);
+                return verify(algorithm, key, data, signature);
+            } catch (SignatureException ex) {
+                /* malformed signature, the key itself was checked when read */
+                return false;
+            } catch (GeneralSecurityException ex) {
+                /* unsupported curve or algorithm, let the token do it */
+            }
+        }
+        return verifyOnToken(hSession, verifyMech, hPublicKey, data, signature);
+    }
+
+    /**
+     * Verifies a list of signatures made with the same key, using all the
+     * cores of the machine.
+     *
+     * @param hSession Handle to an open session, used to read the key once.
+     * @param verifyMech The signature mechanism (e.g., ECDSA SHA256).
+     * @param hPublicKey Handle of the public key to verify with.
+     * @param data The signed data, or hashes for the raw mechanisms.
+     * @param signatures The signatures, in the same order as the data.
+     * @return For each signature, whether it is valid.
+     * @throws PKCS11Exception If the key cannot be read from the token.
+     * @throws GeneralSecurityException If the JVM cannot verify with this key or mechanism.
+     */
+    public boolean[] verifyAll(long hSession, CK_MECHANISM verifyMech, long hPublicKey,
+            List<byte[]> data, List<byte[]> signatures) throws PKCS11Exception, GeneralSecurityException {
+
+        if (data.size() != signatures.size()) {
+            throw new IllegalArgumentException("Expected one signature per message");
+        }
+        String algorithm = ALGORITHMS.get(verifyMech.mechanism);
+        if (algorithm == null) {
+            throw new GeneralSecurityException("No JCA algorithm for mechanism 0x" + Long.toHexString(verifyMech.mechanism));
+        }
+        PublicKey key = getPublicKey(hSession, hPublicKey);
+
+        boolean[] valid = new boolean[data.size()];
+        IntStream.range(0, valid.length).parallel().forEach(i -> {
+            try {
+                valid[i] = verify(algorithm, key, data.get(i), signatures.get(i));
+            } catch (GeneralSecurityException ex) {
+                valid[i] = false;
+            }
+        });
+        return valid;
+    }
+
+    private static boolean verify(String algorithm, PublicKey key, byte[] data, byte[] signature) throws GeneralSecurityException {
+        Map<String, Signature> signatures = SIGNATURES.get();
+        Signature verifier = signatures.get(algorithm);
+        if (verifier == null) {
+            verifier = Signature.getInstance(algorithm);
+            signatures.put(algorithm, verifier);
+        }
+        verifier.initVerify(key);
+        verifier.update(data);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * Checks that the JVM can verify with a key: SunEC builds keys on curves
+     * it cannot verify with, and only fails when verifying. A dummy signature
+     * is verified, any exception telling the curve is not supported.
+     *
+     * @param key The public key.
+     * @throws GeneralSecurityException If the JVM cannot verify with the key.
+     */
+    static void checkSupported(PublicKey key) throws GeneralSecurityException {
+        if (!(key instanceof ECPublicKey)) {
+            return;
+        }
+        int fieldLen = (((ECPublicKey) key).getParams().getCurve().getField().getFieldSize() + 7) / 8;
+        /* r = s = 1 */
+        byte[] signature = new byte[2 * fieldLen];
+        signature[fieldLen - 1] = 1;
+        signature[2 * fieldLen - 1] = 1;
+        try {
+            verify("SHA256withECDSAinP1363Format", key, new byte[1], signature);
+        } catch (GeneralSecurityException | RuntimeException ex) {
+            throw new GeneralSecurityException("Curve not supported by the JVM", ex);
+        }
+    }
+
+    private boolean verifyOnToken(long hSession, CK_MECHANISM verifyMech, long hPublicKey,
+            byte[] data, byte[] signature) throws PKCS11Exception {
+        try {
+            Cryptography.Verify(p11, hSession, verifyMech, hPublicKey, data, data.length, signature, signature.length);
+            return true;
+        } catch (PKCS11Exception ex) {
+            if (ex.getErrorCode() == PKCS11Exception.CKR_SIGNATURE_INVALID
+                    || ex.getErrorCode() == PKCS11Exception.CKR_SIGNATURE_LEN_RANGE) {
+                return false;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the attributes of a public key object and builds the matching JCA
+     * key.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param hSession Handle to an open session.
+     * @param hPublicKey Handle of the public key.
+     * @return The public key.
+     * @throws PKCS11Exception If the key attributes cannot be read.
+     * @throws GeneralSecurityException If the key type or curve is not supported by the JVM.
+     */
+    public static PublicKey readPublicKey(PKCS11 p11, long hSession, long hPublicKey) throws PKCS11Exception, GeneralSecurityException {
+        CK_ATTRIBUTE[] keyType = {
+            new CK_ATTRIBUTE(PKCS11Constants.CKA_KEY_TYPE)
+        };
+        Cryptoki.C_GetAttributeValue(p11, hSession, hPublicKey, keyType);
+
+        long type = keyType[0].getLong();
+        if (type == PKCS11Constants.CKK_RSA) {
+            CK_ATTRIBUTE[] attr = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_MODULUS),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_PUBLIC_EXPONENT)
+            };
+            Cryptoki.C_GetAttributeValue(p11, hSession, hPublicKey, attr);
+
+            return KeyFactory.getInstance("RSA").generatePublic(
+                    new RSAPublicKeySpec(attr[0].getBigInteger(), attr[1].getBigInteger()));
+        } else if (type == PKCS11Constants.CKK_EC) {
+            CK_ATTRIBUTE[] attr = {
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EC_PARAMS),
+                new CK_ATTRIBUTE(PKCS11Constants.CKA_EC_POINT)
+            };
+            Cryptoki.C_GetAttributeValue(p11, hSession, hPublicKey, attr);
+
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            try {
+                params.init(attr[0].getByteArray());
+            } catch (IOException ex) {
+                throw new GeneralSecurityException("Unsupported EC parameters", ex);
+            }
+            ECParameterSpec spec = params.getParameterSpec(ECParameterSpec.class);
+            ECPoint point = decodeECPoint(attr[1].getByteArray(), spec);
+
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(point, spec));
+        }
+        throw new GeneralSecurityException("Unsupported key type 0x" + Long.toHexString(type));
+    }
+
+    /* CKA_EC_POINT is a DER octet string, but some tokens return the raw point */
+    static ECPoint decodeECPoint(byte[] encoded, ECParameterSpec spec) throws GeneralSecurityException {
+        int fieldLen = (spec.getCurve().getField().getFieldSize() + 7) / 8;
+        int pointLen = 2 * fieldLen + 1;
+        int offset;
+        if (encoded.length == pointLen) {
+            offset = 0;
+        } else {
+            offset = octetStringOffset(encoded, pointLen);
+        }
+
+        /* only the uncompressed form 04 | X | Y is accepted */
+        if (encoded[offset] != 0x04) {
+            throw new GeneralSecurityException("Unsupported EC point format 0x" + Integer.toHexString(encoded[offset] & 0xff));
+        }
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(encoded, offset + 1, offset + 1 + fieldLen));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(encoded, offset + 1 + fieldLen, offset + pointLen));
+        return new ECPoint(x, y);
+    }
+
+    /* offset of the content of a DER OCTET STRING holding contentLen bytes */
+    private static int octetStringOffset(byte[] encoded, int contentLen) throws GeneralSecurityException {
+        if (encoded.length < 2 || encoded[0] != 0x04) {
+            throw new GeneralSecurityException("Invalid EC point: not an octet string");
+        }
+        int length = encoded[1] & 0xff;
+        int offset = 2;
+        if (length > 0x7f) {
+            /* long form: the low bits count the length bytes that follow */
+            int count = length & 0x7f;
+            if (count == 0 || count > 2 || encoded.length < offset + count) {
+                throw new GeneralSecurityException("Invalid EC point: bad octet string length");
+            }
+            length = 0;
+            for (int i = 0; i < count; ++i) {
+                length = (length << 8) | (encoded[offset++] & 0xff);
+            }
+        }
+        if (length != contentLen || encoded.length != offset + length) {
+            throw new GeneralSecurityException("Invalid EC point: " + length + " bytes");
+        }
+        return offset;
+    }
+}
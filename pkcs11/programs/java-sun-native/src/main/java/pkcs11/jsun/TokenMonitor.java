@@ -0,0 +1,252 @@
+package pkcs11.jsun;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import sun.security.pkcs11.wrapper.CK_TOKEN_INFO;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Samples the capacity of every token of a module at a fixed interval.
+ * <p>
+ * Each sample reads <code>C_GetTokenInfo</code> for all the slots with a
+ * token, in parallel, and prints one record per token: session and read/write
+ * session counts against their maximum, and free public and private memory.
+ * Records are printed as JSON lines or in the Prometheus text exposition
+ * format, so that a partition running out of sessions or object storage can
+ * be alerted on.
+ * <p>
+ * Values the token reports as <code>CK_UNAVAILABLE_INFORMATION</code> are left
+ * out of the records.
+ */
+public class TokenMonitor implements AutoCloseable {
+
+    /**
+     * Output format of the samples.
+     */
+    public enum Format {
+        /** One JSON object per token and sample. */
+        JSON,
+        /** Prometheus text exposition format, one block per sample. */
+        PROMETHEUS
+    }
+
+    /* CK_UNAVAILABLE_INFORMATION as read into a Java long */
+    private static final long CK_UNAVAILABLE_INFORMATION = ~0L;
+
+    /* name and help of every gauge, in the order of Sample.gauge() */
+    private static final String[][] GAUGES = {
+        {"sessions", "Sessions open on the token."},
+        {"max_sessions", "Maximum number of sessions on the token."},
+        {"rw_sessions", "Read/write sessions open on the token."},
+        {"max_rw_sessions", "Maximum number of read/write sessions on the token."},
+        {"free_public_memory_bytes", "Free public memory of the token."},
+        {"total_public_memory_bytes", "Total public memory of the token."},
+        {"free_private_memory_bytes", "Free private memory of the token."},
+        {"total_private_memory_bytes", "Total private memory of the token."}
+    };
+
+    private final PKCS11 p11;
+    private final Format format;
+    private final PrintStream out;
+    private final ExecutorService samplers;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param p11 PKCS#11 wrapper instance.
+     * @param format Output format of the samples.
+     * @param out Where the samples are printed.
+     * @param parallelism Number of tokens read at the same time.
+     */
+    public TokenMonitor(PKCS11 p11, Format format, PrintStream out, int parallelism) {
+        this.p11 = p11;
+        this.format = format;
+        this.out = out;
+        this.samplers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "pkcs11-monitor-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pkcs11-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts sampling.
+     *
+     * @param interval Interval between two samples.
+     * @param unit Unit of the interval.
+     */
+    public void start(long interval, TimeUnit unit) {
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                print(sample());
+            } catch (PKCS11Exception | RuntimeException ex) {
+                /* the next sample may succeed, report and keep going: an exception would cancel the schedule */
+                System.err.println("Sampling failed: " + ex);
+            }
+        }, 0, interval, unit);
+    }
+
+    /**
+     * Reads every token once.
+     *
+     * @return One sample per slot with a token; a token whose information
+     * cannot be read has a null info.
+     * @throws PKCS11Exception If the slot list cannot be read.
+     */
+    public List<Sample> sample() throws PKCS11Exception {
+        long timestamp = System.currentTimeMillis();
+        List<CompletableFuture<Sample>> futures = new ArrayList<>();
+
+        for (long slotId : Cryptoki.C_GetSlotList(p11, true)) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return new Sample(timestamp, slotId, Cryptoki.C_GetTokenInfo(p11, slotId));
+                } catch (PKCS11Exception ex) {
+                    return new Sample(timestamp, slotId, null);
+                }
+            }, samplers));
+        }
+
+        List<Sample> samples = new ArrayList<>(futures.size());
+        for (CompletableFuture<Sample> future : futures) {
+            samples.add(future.join());
+        }
+        return samples;
+    }
+
+    /**
+     * Prints samples in the format of the monitor.
+     *
+     * @param samples The samples.
+     */
+    public void print(List<Sample> samples) {
+        StringBuilder sb = new StringBuilder();
+        if (format == Format.JSON) {
+            for (Sample sample : samples) {
+                sample.appendJson(sb);
+                sb.append('\n');
+            }
+        } else {
+            for (int g = 0; g < GAUGES.length; ++g) {
+                String name = "pkcs11_token_" + GAUGES[g][0];
+                sb.append("# HELP ").append(name).append(' ').append(GAUGES[g][1]).append('\n');
+                sb.append("# TYPE ").append(name).append(" gauge\n");
+                for (Sample sample : samples) {
+                    long value = sample.gauge(g);
+                    if (value != CK_UNAVAILABLE_INFORMATION) {
+                        sb.append(name).append("{slot=\"").append(sample.slotId)
+                                .append("\",label=\"").append(escape(sample.label()))
+                                .append("\",serial=\"").append(escape(sample.serial()))
+                                .append("\"} ").append(value).append(' ').append(sample.timestamp).append('\n');
+                    }
+                }
+            }
+        }
+        out.print(sb);
+        out.flush();
+    }
+
+    /**
+     * Stops sampling.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        samplers.shutdownNow();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The capacity of one token at one point in time.
+     */
+    public static class Sample {
+
+        private final long timestamp;
+        private final long slotId;
+        private final CK_TOKEN_INFO info;
+
+        Sample(long timestamp, long slotId, CK_TOKEN_INFO info) {
+            this.timestamp = timestamp;
+            this.slotId = slotId;
+            this.info = info;
+        }
+
+        /**
+         * @return When the token was read, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return The slot of the token.
+         */
+        public long getSlotId() {
+            return slotId;
+        }
+
+        /**
+         * @return The token information, or null if it could not be read.
+         */
+        public CK_TOKEN_INFO getInfo() {
+            return info;
+        }
+
+        String label() {
+            return info == null ? "" : new String(info.label).trim();
+        }
+
+        String serial() {
+            return info == null ? "" : new String(info.serialNumber).trim();
+        }
+
+        long gauge(int index) {
+            if (info == null) {
+                return CK_UNAVAILABLE_INFORMATION;
+            }
+            switch (index) {
+                case 0: return info.ulSessionCount;
+                case 1: return info.ulMaxSessionCount;
+                case 2: return info.ulRwSessionCount;
+                case 3: return info.ulMaxRwSessionCount;
+                case 4: return info.ulFreePublicMemory;
+                case 5: return info.ulTotalPublicMemory;
+                case 6: return info.ulFreePrivateMemory;
+                default: return info.ulTotalPrivateMemory;
+            }
+        }
+
+        void appendJson(StringBuilder sb) {
+            sb.append("{\"timestamp\":").append(timestamp)
+                    .append(",\"slot\":").append(slotId);
+            if (info == null) {
+                sb.append(",\"error\":true}");
+                return;
+            }
+            sb.append(",\"label\":\"").append(escape(label()))
+                    .append("\",\"serial\":\"").append(escape(serial())).append('"');
+            for (int g = 0; g < GAUGES.length; ++g) {
+                long value = gauge(g);
+                if (value != CK_UNAVAILABLE_INFORMATION) {
+                    sb.append(",\"").append(GAUGES[g][0]).append("\":").append(value);
+                }
+            }
+            sb.append('}');
+        }
+    }
+}
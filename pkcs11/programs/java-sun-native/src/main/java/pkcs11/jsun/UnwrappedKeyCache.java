@@ -0,0 +1,482 @@
+package pkcs11.jsun;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_MECHANISM;
+import sun.security.pkcs11.wrapper.PKCS11;
+import sun.security.pkcs11.wrapper.PKCS11Constants;
+import sun.security.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Bounded cache of unwrapped keys, keyed on the unwrapping key, the
+ * mechanism, the template and the bytes of the wrapped key.
+ * <p>
+ * Reading the same envelope-encrypted objects again and again would otherwise
+ * cost one <code>C_UnwrapKey</code> per read. Depending on the policy the
+ * cache keeps either the handle of the unwrapped session object, the key then
+ * staying in the token, or the key material itself, the key object being
+ * destroyed right after it was read. The same wrapped bytes unwrapped with
+ * another key, mechanism or template are a different entry: they may give
+ * another key, or the same key with other attributes.
+ * <p>
+ * With the {@link Policy#HANDLES} policy the keys are unwrapped on a session
+ * the cache opens and keeps until it is closed, so that they do not vanish
+ * with the session of a caller, nor their handles get reused by the token
+ * while still cached. The token must be logged in by another session, e.g.
+ * of a {@link SessionPool} on the same slot, for as long as the cache is used.
+ * Unwraps are serialised on that session.
+ * <p>
+ * Entries expire a fixed time after they were unwrapped, and the least
+ * recently used entry is evicted when the cache is full. Cached handles are
+ * destroyed when their entry goes, whether or not another thread is still
+ * using them: handles are not reference counted. The time to live must
+ * outlast every use of a handle returned by {@link #getHandle}, and the
+ * capacity must exceed the number of keys in use at the same time. A caller
+ * that cannot bound its use of a handle should take the key material, or
+ * go through {@link #withHandle}, which unwraps the key again when the token
+ * reports its handle invalid.
+ * <p>
+ * Usage :
+ * <pre>
+ * try (UnwrappedKeyCache cache = new UnwrappedKeyCache(p11, slotId, Policy.HANDLES)) {
+ *     byte[] mac = cache.withHandle(unwrapMech, hUnwrappingKey, wrappedKey, template,
+ *             hKey -&gt; Cryptography.Sign(p11, hSession, hmacMech, hKey, data, data.length));
+ * }
+ * </pre>
+ */
+public class UnwrappedKeyCache implements AutoCloseable {
+
+    /**
+     * Default number of keys kept in the cache.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Default time an unwrapped key is kept, in milliseconds.
+     */
+    public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+    /**
+     * An operation using the handle of an unwrapped key.
+     *
+     * @param <T> The result of the operation.
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+
+        /**
+         * @param hKey The handle of the unwrapped key.
+         * @return The result of the operation.
+         * @throws PKCS11Exception If the operation fails.
+         */
+        T run(long hKey) throws PKCS11Exception;
+    }
+
+    /**
+     * What the cache keeps for an unwrapped key.
+     */
+    public enum Policy {
+        /** the handle of the unwrapped session object, the key stays in the token */
+        HANDLES,
+        /** the value of the key, the key object is destroyed once read */
+        KEY_MATERIAL
+    }
+
+    private final PKCS11 p11;
+    private final long slotId;
+    private final Policy policy;
+    private final int capacity;
+    private final long ttl;
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /* session the handles are unwrapped on and destroyed with, 0 when not open */
+    private final Object sessionLock = new Object();
+    private long hCacheSession;
+    private boolean closed;
+
+    /**
+     * Creates a cache with the default capacity and time to live.
+     *
+     * @param p11 PKCS#11 wrapper instance.
+     * @param slotId The slot of the token the keys are unwrapped on.
+     * @param policy What the cache keeps.
+     */
+    public UnwrappedKeyCache(PKCS11 p11, long slotId, Policy policy) {
+        this(p11, slotId, policy, DEFAULT_CAPACITY, DEFAULT_TTL);
+    }
+
+    /**
+     * @param p11 PKCS#11 wrapper instance.
+     * @param slotId The slot of the token the keys are unwrapped on.
+     * @param policy What the cache keeps.
+     * @param capacity Maximum number of keys kept.
+     * @param ttl Time an unwrapped key is kept, in milliseconds.
+     */
+    public UnwrappedKeyCache(PKCS11 p11, long slotId, Policy policy, int capacity, long ttl) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+        }
+        this.p11 = p11;
+        this.slotId = slotId;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return What the cache keeps.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the handle of an unwrapped key, unwrapping it on the session of
+     * the cache if it is not cached. Only for the {@link Policy#HANDLES} policy.
+     *
+     * @param mechanism The mechanism used for unwrapping.
+     * @param hUnwrappingKey The handle of the unwrapping key.
+     * @param wrappedKey The wrapped key.
+     * @param template The template of the unwrapped key; it should make it a
+     * session object (CKA_TOKEN false).
+     * @return The handle of the unwrapped key, owned by the cache; valid for
+     * at most the time to live of the cache.
+     * @throws PKCS11Exception If the key cannot be unwrapped.
+     */
+    public long getHandle(CK_MECHANISM mechanism, long hUnwrappingKey, byte[] wrappedKey,
+            CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        checkPolicy(Policy.HANDLES);
+        Key k = new Key(mechanism, hUnwrappingKey, wrappedKey, template);
+        Entry entry = lookup(k);
+        if (entry == null) {
+            long hKey = unwrap(mechanism, hUnwrappingKey, wrappedKey, template);
+            entry = store(k, new Entry(hKey, null, System.currentTimeMillis() + ttl));
+        }
+        return entry.handle;
+    }
+
+    /**
+     * Runs an operation on an unwrapped key, see {@link #getHandle}. If the
+     * token reports the cached handle invalid, the entry is dropped without
+     * destroying the handle and the operation is retried once on a key
+     * unwrapped again. Only for the {@link Policy#HANDLES} policy.
+     *
+     * @param <T> The result of the operation.
+     * @param mechanism The mechanism used for unwrapping.
+     * @param hUnwrappingKey The handle of the unwrapping key.
+     * @param wrappedKey The wrapped key.
+     * @param template The template of the unwrapped key.
+     * @param operation The operation, given the handle of the key.
+     * @return The result of the operation.
+     * @throws PKCS11Exception If the key cannot be unwrapped, or the operation fails.
+     */
+    public <T> T withHandle(CK_MECHANISM mechanism, long hUnwrappingKey, byte[] wrappedKey,
+            CK_ATTRIBUTE[] template, Operation<T> operation) throws PKCS11Exception {
+        long hKey = getHandle(mechanism, hUnwrappingKey, wrappedKey, template);
+        try {
+            return operation.run(hKey);
+        } catch (PKCS11Exception ex) {
+            if (!HandleCache.isStaleHandle(ex)) {
+                throw ex;
+            }
+            /* the handle may have been given to another object since, leave it alone */
+            Key k = new Key(mechanism, hUnwrappingKey, wrappedKey, template);
+            synchronized (this) {
+                Entry entry = entries.get(k);
+                if (entry != null && entry.handle == hKey) {
+                    entries.remove(k);
+                }
+            }
+            return operation.run(getHandle(mechanism, hUnwrappingKey, wrappedKey, template));
+        }
+    }
+
+    /**
+     * Returns the value of an unwrapped key, unwrapping it on the token if it
+     * is not cached. Only for the {@link Policy#KEY_MATERIAL} policy.
+     *
+     * @param hSession Handle to an open session.
+     * @param mechanism The mechanism used for unwrapping.
+     * @param hUnwrappingKey The handle of the unwrapping key.
+     * @param wrappedKey The wrapped key.
+     * @param template The template of the unwrapped key; it must allow reading
+     * the value (CKA_SENSITIVE false, CKA_EXTRACTABLE true).
+     * @param algorithm JCA name of the key algorithm, e.g. "AES".
+     * @return The unwrapped key.
+     * @throws PKCS11Exception If the key cannot be unwrapped or read.
+     */
+    public SecretKey getKey(long hSession, CK_MECHANISM mechanism, long hUnwrappingKey, byte[] wrappedKey,
+            CK_ATTRIBUTE[] template, String algorithm) throws PKCS11Exception {
+        checkPolicy(Policy.KEY_MATERIAL);
+        Key k = new Key(mechanism, hUnwrappingKey, wrappedKey, template);
+        Entry entry = lookup(k);
+        if (entry == null) {
+            long hKey = ManageObjects.unwrapKey(p11, hSession, mechanism, hUnwrappingKey, wrappedKey, template);
+            byte[] value;
+            try {
+                CK_ATTRIBUTE[] attr = {
+                    new CK_ATTRIBUTE(PKCS11Constants.CKA_VALUE)
+                };
+                Cryptoki.C_GetAttributeValue(p11, hSession, hKey, attr);
+                value = attr[0].getByteArray();
+            } finally {
+                Cryptoki.C_DestroyObject(p11, hSession, hKey);
+            }
+            SecretKey key = new SecretKeySpec(value, algorithm);
+            Arrays.fill(value, (byte) 0);
+            entry = store(k, new Entry(0, key, System.currentTimeMillis() + ttl));
+        }
+        return entry.key;
+    }
+
+    /**
+     * Drops the entry of a wrapped key, destroying its handle if any, e.g.
+     * after the token reported the cached handle invalid.
+     *
+     * @param mechanism The mechanism the key was unwrapped with.
+     * @param hUnwrappingKey The handle of the unwrapping key.
+     * @param wrappedKey The wrapped key.
+     * @param template The template the key was unwrapped with.
+     */
+    public void invalidate(CK_MECHANISM mechanism, long hUnwrappingKey, byte[] wrappedKey,
+            CK_ATTRIBUTE[] template) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(new Key(mechanism, hUnwrappingKey, wrappedKey, template));
+        }
+        if (entry != null) {
+            destroy(entry);
+        }
+    }
+
+    /**
+     * Drops every entry, destroying the cached handles.
+     */
+    public void clear() {
+        List<Entry> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        for (Entry entry : evicted) {
+            destroy(entry);
+        }
+    }
+
+    /**
+     * Drops every entry and closes the session of the cache, which destroys
+     * the keys unwrapped on it.
+     */
+    @Override
+    public void close() {
+        synchronized (sessionLock) {
+            closed = true;
+            synchronized (this) {
+                entries.clear();
+            }
+            if (hCacheSession != 0) {
+                try {
+                    Cryptoki.C_CloseSession(p11, hCacheSession);
+                } catch (PKCS11Exception ex) {
+                    /* the session is gone anyway */
+                }
+                hCacheSession = 0;
+            }
+        }
+    }
+
+    /**
+     * @return The number of cached keys, expired ones included until they are evicted.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Entry lookup(Key k) {
+        Entry expired = null;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(k);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                expired = entries.remove(k);
+                entry = null;
+            }
+        }
+        if (expired != null) {
+            destroy(expired);
+        }
+        return entry;
+    }
+
+    /* cache an entry, then destroy whatever it pushed out, outside of the lock */
+    private Entry store(Key k, Entry entry) {
+        List<Entry> evicted = new ArrayList<>();
+        Entry cached;
+        synchronized (this) {
+            cached = entries.putIfAbsent(k, entry);
+            if (cached != null) {
+                /* another thread unwrapped the same key meanwhile, keep its entry */
+                evicted.add(entry);
+            } else {
+                cached = entry;
+                long now = System.currentTimeMillis();
+                Iterator<Entry> it = entries.values().iterator();
+                while (it.hasNext()) {
+                    Entry e = it.next();
+                    if (e != entry && (e.expiresAt <= now || entries.size() > capacity)) {
+                        it.remove();
+                        evicted.add(e);
+                    }
+                }
+            }
+        }
+        for (Entry e : evicted) {
+            destroy(e);
+        }
+        return cached;
+    }
+
+    /* unwrap a key on the session of the cache, opening it again if it was lost */
+    private long unwrap(CK_MECHANISM mechanism, long hUnwrappingKey, byte[] wrappedKey,
+            CK_ATTRIBUTE[] template) throws PKCS11Exception {
+        synchronized (sessionLock) {
+            if (closed) {
+                throw new IllegalStateException("Cache closed");
+            }
+            if (hCacheSession == 0) {
+                hCacheSession = Cryptoki.C_OpenSession(p11, slotId,
+                        PKCS11Constants.CKF_SERIAL_SESSION | PKCS11Constants.CKF_RW_SESSION, null, null);
+            }
+            try {
+                return ManageObjects.unwrapKey(p11, hCacheSession, mechanism, hUnwrappingKey, wrappedKey, template);
+            } catch (PKCS11Exception ex) {
+                if (SessionPool.isSessionLost(ex)) {
+                    sessionLost();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /* the keys went with the session: forget their handles, the token may reuse them */
+    private void sessionLost() {
+        hCacheSession = 0;
+        synchronized (this) {
+            entries.clear();
+        }
+    }
+
+    private void destroy(Entry entry) {
+        if (entry.handle == 0) {
+            return;
+        }
+        synchronized (sessionLock) {
+            if (hCacheSession == 0) {
+                /* the key went with the session it was unwrapped on */
+                return;
+            }
+            try {
+                Cryptoki.C_DestroyObject(p11, hCacheSession, entry.handle);
+            } catch (PKCS11Exception ex) {
+                if (SessionPool.isSessionLost(ex)) {
+                    sessionLost();
+                }
+            }
+        }
+    }
+
+    private void checkPolicy(Policy expected) {
+        if (policy != expected) {
+            throw new IllegalStateException("Cache keeps " + policy + ", not " + expected);
+        }
+    }
+
+    /* SHA-256 of everything that decides what an unwrap gives */
+    private static final class Key {
+
+        private final byte[] digest;
+        private final int hash;
+
+        Key(CK_MECHANISM mechanism, long hUnwrappingKey, byte[] wrappedKey, CK_ATTRIBUTE[] template) {
+            MessageDigest sha;
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                /* every JRE provides SHA-256 */
+                throw new IllegalStateException(ex);
+            }
+            ByteBuffer fixed = ByteBuffer.allocate(3 * Long.BYTES);
+            fixed.putLong(hUnwrappingKey).putLong(mechanism.mechanism).putLong(wrappedKey.length);
+            sha.update(fixed.array());
+            if (mechanism.pParameter instanceof byte[]) {
+                update(sha, (byte[]) mechanism.pParameter);
+            } else if (mechanism.pParameter != null) {
+                update(sha, mechanism.pParameter.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            sha.update(wrappedKey);
+            for (CK_ATTRIBUTE attribute : template) {
+                update(sha, attribute);
+            }
+            this.digest = sha.digest();
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        private static void update(MessageDigest sha, CK_ATTRIBUTE attribute) {
+            Object value = attribute.pValue;
+            sha.update(ByteBuffer.allocate(Long.BYTES).putLong(attribute.type).array());
+            if (value instanceof byte[]) {
+                update(sha, (byte[]) value);
+            } else if (value instanceof char[]) {
+                update(sha, new String((char[]) value).getBytes(StandardCharsets.UTF_8));
+            } else {
+                update(sha, String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /* length first, so that consecutive values cannot run into each other */
+        private static void update(MessageDigest sha, byte[] value) {
+            sha.update(ByteBuffer.allocate(Integer.BYTES).putInt(value.length).array());
+            sha.update(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /* what is kept for one wrapped key */
+    private static final class Entry {
+
+        private final long handle;
+        private final SecretKey key;
+        private final long expiresAt;
+
+        Entry(long handle, SecretKey key, long expiresAt) {
+            this.handle = handle;
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package pkcs11.jsun;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Key decoding and JVM support checks of the software verifier.
+ */
+public class SoftwareVerifierTest {
+
+    @Test(expected = GeneralSecurityException.class)
+    public void secp256k1IsLeftToTheToken() throws Exception {
+        /* SunEC knows the curve but cannot verify on it since JDK 16 */
+        ECParameterSpec spec = curve("secp256k1");
+        PublicKey key = KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(spec.getGenerator(), spec));
+
+        SoftwareVerifier.checkSupported(key);
+    }
+
+    @Test
+    public void secp256r1IsVerifiedInTheJvm() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair pair = generator.generateKeyPair();
+
+        SoftwareVerifier.checkSupported(pair.getPublic());
+
+        Signature signer = Signature.getInstance("SHA256withECDSAinP1363Format");
+        signer.initSign(pair.getPrivate());
+        signer.update(new byte[]{1, 2, 3});
+        Signature verifier = Signature.getInstance("SHA256withECDSAinP1363Format");
+        verifier.initVerify(pair.getPublic());
+        verifier.update(new byte[]{1, 2, 3});
+        assertTrue(verifier.verify(signer.sign()));
+    }
+
+    @Test
+    public void rawPoint() throws Exception {
+        ECPublicKey key = generate("secp256r1");
+        byte[] raw = uncompressed(key);
+
+        assertEquals(key.getW(), SoftwareVerifier.decodeECPoint(raw, key.getParams()));
+    }
+
+    @Test
+    public void shortFormOctetString() throws Exception {
+        ECPublicKey key = generate("secp256r1");
+        byte[] raw = uncompressed(key);
+        byte[] der = new byte[raw.length + 2];
+        der[0] = 0x04;
+        der[1] = (byte) raw.length;
+        System.arraycopy(raw, 0, der, 2, raw.length);
+
+        assertEquals(key.getW(), SoftwareVerifier.decodeECPoint(der, key.getParams()));
+    }
+
+    @Test
+    public void longFormOctetString() throws Exception {
+        /* 133 bytes of point, above the 127 of the short form */
+        ECPublicKey key = generate("secp521r1");
+        byte[] raw = uncompressed(key);
+        byte[] der = new byte[raw.length + 3];
+        der[0] = 0x04;
+        der[1] = (byte) 0x81;
+        der[2] = (byte) raw.length;
+        System.arraycopy(raw, 0, der, 3, raw.length);
+
+        assertEquals(key.getW(), SoftwareVerifier.decodeECPoint(der, key.getParams()));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void wrongOctetStringLength() throws Exception {
+        ECPublicKey key = generate("secp256r1");
+        byte[] raw = uncompressed(key);
+        byte[] der = new byte[raw.length + 2];
+        der[0] = 0x04;
+        der[1] = (byte) (raw.length - 1);
+        System.arraycopy(raw, 0, der, 2, raw.length);
+
+        SoftwareVerifier.decodeECPoint(der, key.getParams());
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void compressedPoint() throws Exception {
+        ECPublicKey key = generate("secp256r1");
+        byte[] raw = uncompressed(key);
+        raw[0] = 0x02;
+
+        SoftwareVerifier.decodeECPoint(raw, key.getParams());
+    }
+
+    private static ECParameterSpec curve(String name) throws Exception {
+        AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+        params.init(new ECGenParameterSpec(name));
+        return params.getParameterSpec(ECParameterSpec.class);
+    }
+
+    private static ECPublicKey generate(String curve) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec(curve));
+        return (ECPublicKey) generator.generateKeyPair().getPublic();
+    }
+
+    /* 04 | X | Y */
+    private static byte[] uncompressed(ECPublicKey key) {
+        int fieldLen = (key.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+        ECPoint w = key.getW();
+        byte[] raw = new byte[2 * fieldLen + 1];
+        raw[0] = 0x04;
+        put(w.getAffineX(), raw, 1, fieldLen);
+        put(w.getAffineY(), raw, 1 + fieldLen, fieldLen);
+        return raw;
+    }
+
+    private static void put(BigInteger value, byte[] to, int offset, int length) {
+        byte[] bytes = value.toByteArray();
+        int count = Math.min(bytes.length, length);
+        System.arraycopy(bytes, bytes.length - count, to, offset + length - count, count);
+    }
+}
@@ -0,0 +1,117 @@
+package pkcs11.jsun.ptk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.junit.Test;
+
+/**
+ * Public derivation against the test vectors of BIP32.
+ */
+public class BIP32PublicDerivationTest {
+
+    private static final X9ECParameters SECP256K1 = CustomNamedCurves.getByName("secp256k1");
+
+    /* test vector 1, m/0H */
+    private static final byte[] V1_M_0H_PUBLIC = hex("035a784662a4a20a65bf6aab9ae98a6c068a81c52e4b032c0fb5400c706cfccc56");
+    private static final byte[] V1_M_0H_CHAIN = hex("47fdacbd0f1097043b78c63c20c34ef4ed9a111d980047ad16282c7ae6236141");
+
+    /* test vector 1, m/0H/1 */
+    private static final byte[] V1_M_0H_1_PUBLIC = hex("03501e454bf00751f24b1b489aa925215d66af2234e3891c3b21a52bedb3cd711c");
+    private static final byte[] V1_M_0H_1_CHAIN = hex("2a7857631386ba23dacac34180dd1983734e444fdbf774041578e9b6adb37c19");
+
+    /* test vector 2, m */
+    private static final byte[] V2_M_PUBLIC = hex("03cbcaa9c98c877a26977d00825c956a238e8dddfbd322cce4f74b0b5bd6ace4a7");
+    private static final byte[] V2_M_CHAIN = hex("60499f801b896d83179a4374aeb7822aaeaceaa0db1f85ee3e904c4defbd9689");
+
+    /* test vector 2, m/0 */
+    private static final byte[] V2_M_0_PUBLIC = hex("02fc9e5af0ac8d9b3cecfe2a888e2117ba3d089d8585886c9c826b6b22a98d12ea");
+    private static final byte[] V2_M_0_CHAIN = hex("f0909affaa7ee7abe5dd4e100598d4dc53cd709d5a5c2cac40e7412f232f7c9c");
+
+    @Test
+    public void childOfTestVector1() {
+        BIP32PublicDerivation child = new BIP32PublicDerivation(V1_M_0H_PUBLIC, V1_M_0H_CHAIN).child(1);
+
+        assertArrayEquals(V1_M_0H_1_PUBLIC, child.getPublicKey());
+        assertArrayEquals(V1_M_0H_1_CHAIN, child.getChainCode());
+    }
+
+    @Test
+    public void childOfTestVector2() {
+        BIP32PublicDerivation child = new BIP32PublicDerivation(V2_M_PUBLIC, V2_M_CHAIN).child(0);
+
+        assertArrayEquals(V2_M_0_PUBLIC, child.getPublicKey());
+        assertArrayEquals(V2_M_0_CHAIN, child.getChainCode());
+    }
+
+    @Test
+    public void rangeMatchesSingleDerivations() throws Exception {
+        BIP32PublicDerivation parent = new BIP32PublicDerivation(V1_M_0H_PUBLIC, V1_M_0H_CHAIN);
+        byte[] keys = parent.deriveRange(0, 10);
+
+        assertEquals(10 * BIP32PublicDerivation.PUBLIC_KEY_LENGTH, keys.length);
+        for (int i = 0; i < 10; ++i) {
+            int offset = i * BIP32PublicDerivation.PUBLIC_KEY_LENGTH;
+            assertArrayEquals(parent.derivePublicKey(i),
+                    Arrays.copyOfRange(keys, offset, offset + BIP32PublicDerivation.PUBLIC_KEY_LENGTH));
+        }
+        assertArrayEquals(V1_M_0H_1_PUBLIC, Arrays.copyOfRange(keys, BIP32PublicDerivation.PUBLIC_KEY_LENGTH,
+                2 * BIP32PublicDerivation.PUBLIC_KEY_LENGTH));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(10, parent.deriveRange(0, 10, out));
+        assertArrayEquals(keys, out.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hardenedIndexIsRejected() {
+        new BIP32PublicDerivation(V1_M_0H_PUBLIC, V1_M_0H_CHAIN).derivePublicKey(PTK_Constants.CKF_BIP32_HARDENED);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hardenedRangeIsRejected() {
+        new BIP32PublicDerivation(V1_M_0H_PUBLIC, V1_M_0H_CHAIN).deriveRange(0, PTK_Constants.CKF_BIP32_HARDENED + 1);
+    }
+
+    @Test
+    public void tweakNotBelowOrderGivesInvalidChild() {
+        BIP32PublicDerivation parent = new BIP32PublicDerivation(V1_M_0H_PUBLIC, V1_M_0H_CHAIN);
+        byte[] i = new byte[64];
+        Arrays.fill(i, 0, 32, (byte) 0xff);
+
+        assertNull(parent.childPoint(i));
+    }
+
+    @Test
+    public void childAtInfinityIsInvalid() {
+        /* the parent key is G, a tweak of n - 1 brings the child to infinity */
+        byte[] generator = SECP256K1.getG().getEncoded(true);
+        BIP32PublicDerivation parent = new BIP32PublicDerivation(generator, V1_M_0H_CHAIN);
+        byte[] i = Arrays.copyOf(unsigned32(SECP256K1.getN().subtract(BigInteger.ONE)), 64);
+
+        assertNull(parent.childPoint(i));
+    }
+
+    private static byte[] unsigned32(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, result, 32 - length, length);
+        return result;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}